@@ -24,15 +24,25 @@ package com.zeus3110.android_things_driver.Sensor;
 
 import android.support.annotation.IntDef;
 import android.support.annotation.VisibleForTesting;
+import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
 import com.google.android.things.pio.PeripheralManagerService;
+import com.google.android.things.pio.SpiDevice;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
- * Driver for the BME 280 temperature/humidity/pressure sensor.
+ * Driver for the BME 280 temperature/humidity/pressure sensor. A BMP280 (no humidity) is
+ * detected by its chip ID and handled by the same driver.
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class BME280 implements AutoCloseable {
@@ -51,6 +61,18 @@ public class BME280 implements AutoCloseable {
      * I2C address for the sensor.
      */
     public static final int I2C_ADDRESS = 0x76;
+    /**
+     * Maximum SPI clock frequency for the sensor.
+     */
+    public static final int SPI_MAX_FREQUENCY_HZ = 10000000;
+
+    /**
+     * Bus interface the sensor is connected with.
+     */
+    @IntDef({INTERFACE_I2C, INTERFACE_SPI})
+    public @interface Interface {}
+    public static final int INTERFACE_I2C = 0;
+    public static final int INTERFACE_SPI = 1;     // 4-wire SPI, mode 0
 
     // Sensor constants from the datasheet.
     // https://cdn-shop.adafruit.com/datasheets/BST-BME280-DS001-11.pdf
@@ -108,10 +130,120 @@ public class BME280 implements AutoCloseable {
     /**
      * Oversampling multiplier.
      */
-    @IntDef({OVERSAMPLING_SKIPPED, OVERSAMPLING_1X})
+    @IntDef({OVERSAMPLING_SKIPPED, OVERSAMPLING_1X, OVERSAMPLING_2X, OVERSAMPLING_4X,
+            OVERSAMPLING_8X, OVERSAMPLING_16X})
     public @interface Oversampling {}
     public static final int OVERSAMPLING_SKIPPED = 0;
     public static final int OVERSAMPLING_1X = 1;
+    public static final int OVERSAMPLING_2X = 2;
+    public static final int OVERSAMPLING_4X = 3;
+    public static final int OVERSAMPLING_8X = 4;
+    public static final int OVERSAMPLING_16X = 5;
+
+    /**
+     * IIR filter coefficient.
+     */
+    @IntDef({FILTER_OFF, FILTER_2, FILTER_4, FILTER_8, FILTER_16})
+    public @interface Filter {}
+    public static final int FILTER_OFF = 0;
+    public static final int FILTER_2 = 1;
+    public static final int FILTER_4 = 2;
+    public static final int FILTER_8 = 3;
+    public static final int FILTER_16 = 4;
+
+    /**
+     * Inactive duration between measurements in normal mode.
+     */
+    @IntDef({STANDBY_0_5_MS, STANDBY_62_5_MS, STANDBY_125_MS, STANDBY_250_MS, STANDBY_500_MS,
+            STANDBY_1000_MS, STANDBY_10_MS, STANDBY_20_MS})
+    public @interface StandbyTime {}
+    public static final int STANDBY_0_5_MS = 0;
+    public static final int STANDBY_62_5_MS = 1;
+    public static final int STANDBY_125_MS = 2;
+    public static final int STANDBY_250_MS = 3;
+    public static final int STANDBY_500_MS = 4;
+    public static final int STANDBY_1000_MS = 5;
+    public static final int STANDBY_10_MS = 6;     // 2000 ms on BMP280
+    public static final int STANDBY_20_MS = 7;     // 4000 ms on BMP280
+
+    /**
+     * Compensation arithmetic.
+     */
+    @IntDef({COMPENSATION_FLOAT, COMPENSATION_FIXED})
+    public @interface Compensation {}
+    public static final int COMPENSATION_FLOAT = 0;     // floating point formulas
+    public static final int COMPENSATION_FIXED = 1;     // Bosch int32/int64 fixed-point formulas
+
+    /**
+     * Holder for one compensated sample. The driver fills it and never keeps a reference, so
+     * the same instance can be reused for every read.
+     */
+    public static class Sample {
+        /** Temperature in degrees Celsius. */
+        public float temperature;
+        /** Barometric pressure in hPa, or {@link Float#NaN} if pressure was not measured. */
+        public float pressure;
+        /** Humidity in %, or {@link Float#NaN} if humidity was not measured. */
+        public float humidity;
+
+        // Fixed-point results, only filled by the COMPENSATION_FIXED formulas. They are set to 0
+        // with COMPENSATION_FLOAT.
+        /** Fine temperature (t_fine) shared by the pressure and humidity formulas. */
+        public int fineTemperature;
+        /** Temperature in 0.01 degrees Celsius. 5123 equals 51.23 DegC. */
+        public int temperatureFixed;
+        /** Pressure in Pa as unsigned Q24.8. 24674867 equals 24674867/256 = 96386.2 Pa. */
+        public long pressureFixed;
+        /** Humidity in % as unsigned Q22.10. 47445 equals 47445/1024 = 46.333 %RH. */
+        public int humidityFixed;
+    }
+
+    /**
+     * Trimming parameters of one sensor, for compensating raw samples away from the device.
+     */
+    public static final class Calibration {
+        final int[] temperature;
+        final int[] pressure;
+        final int[] humidity;
+
+        /**
+         * @param temperature dig_T1 to dig_T3.
+         * @param pressure dig_P1 to dig_P9.
+         * @param humidity dig_H1 to dig_H6, or null for a BMP280.
+         */
+        public Calibration(int[] temperature, int[] pressure, int[] humidity) {
+            this.temperature = Arrays.copyOf(temperature, 3);
+            this.pressure = Arrays.copyOf(pressure, 9);
+            this.humidity = (humidity == null) ? new int[6] : Arrays.copyOf(humidity, 6);
+        }
+
+        /**
+         * Decodes the calibration from the raw register blocks 0x88 to 0xA1 (26 bytes) and
+         * 0xE1 to 0xE7 (7 bytes, or empty for a BMP280).
+         */
+        public static Calibration fromRegisters(byte[] block1, byte[] block2) {
+            int[] temperature = new int[3];
+            int[] pressure = new int[9];
+            int[] humidity = new int[6];
+            decodeCalibration(block1, block2, temperature, pressure, humidity);
+            return new Calibration(temperature, pressure, humidity);
+        }
+
+        /** Returns dig_T1 to dig_T3. */
+        public int[] getTemperature() {
+            return temperature.clone();
+        }
+
+        /** Returns dig_P1 to dig_P9. */
+        public int[] getPressure() {
+            return pressure.clone();
+        }
+
+        /** Returns dig_H1 to dig_H6. */
+        public int[] getHumidity() {
+            return humidity.clone();
+        }
+    }
 
     // Registers
     private static final int BME280_REG_TEMP_CALIB_1 = 0x88;
@@ -135,37 +267,91 @@ public class BME280 implements AutoCloseable {
     private static final int BME280_REG_HUMID_CALIB_5 = 0xE5;
     private static final int BME280_REG_HUMID_CALIB_6 = 0xE7;
 
+    // Calibration blocks (0x88 to 0xA1 and 0xE1 to 0xE7), each read in one transaction
+    private static final int BME280_REG_CALIB_BLOCK_1 = BME280_REG_TEMP_CALIB_1;
+    private static final int BME280_CALIB_BLOCK_1_LENGTH = BME280_REG_HUMID_CALIB_1 - BME280_REG_CALIB_BLOCK_1 + 1;
+    private static final int BME280_REG_CALIB_BLOCK_2 = BME280_REG_HUMID_CALIB_2;
+    private static final int BME280_CALIB_BLOCK_2_LENGTH = BME280_REG_HUMID_CALIB_6 - BME280_REG_CALIB_BLOCK_2 + 1;
 
     private static final int BME280_REG_ID = 0xD0;
     private static final int BME280_REG_CTRL = 0xF4;
     private static final int BME280_REG_CTRL_HUMID = 0xF2;       // Humidity support
+    private static final int BME280_REG_CONFIG = 0xF5;
+    private static final int BME280_REG_STATUS = 0xF3;
 
     private static final int BME280_REG_PRESS = 0xF7;
     private static final int BME280_REG_TEMP = 0xFA;
     private static final int BME280_REG_HUMID = 0xFD;       // Humidity support
 
+    // Measurement data block (press_msb 0xF7 to hum_lsb 0xFE)
+    // Raw value handed to the compensation for a measurement that is skipped. The sensor
+    // itself reports 0x80000 (0x8000 for humidity), which is also a valid raw reading.
+    /*package*/ static final int BME280_SAMPLE_SKIPPED = -1;
+    /*package*/ static final int BME280_DATA_LENGTH = 8;
+    private static final int BMP280_DATA_LENGTH = 6;        // no humidity registers
+    /*package*/ static final int BME280_DATA_OFFSET_PRESS = BME280_REG_PRESS - BME280_REG_PRESS;
+    /*package*/ static final int BME280_DATA_OFFSET_TEMP = BME280_REG_TEMP - BME280_REG_PRESS;
+    /*package*/ static final int BME280_DATA_OFFSET_HUMID = BME280_REG_HUMID - BME280_REG_PRESS;
+
     private static final int BME280_POWER_MODE_MASK = 0b00000011;
     private static final int BME280_POWER_MODE_SLEEP = 0b00000000;
+    private static final int BME280_POWER_MODE_FORCED = 0b00000001;
     private static final int BME280_POWER_MODE_NORMAL = 0b00000011;
+    private static final int BME280_STATUS_MEASURING = 0b00001000;
+    private static final int BME280_STATUS_IM_UPDATE = 0b00000001;
+    // Status polls after the expected conversion time before giving up
+    private static final int BME280_STATUS_POLL_MAX = 10;
+    // t_standby in microseconds, indexed by StandbyTime
+    private static final int[] BME280_STANDBY_MICROS = {
+            500, 62500, 125000, 250000, 500000, 1000000, 10000, 20000};
+    // The BMP280 uses the last two codes for 2000 ms and 4000 ms
+    private static final int[] BMP280_STANDBY_MICROS = {
+            500, 62500, 125000, 250000, 500000, 1000000, 2000000, 4000000};
     private static final int BME280_OVERSAMPLING_PRESSURE_MASK = 0b00011100;
     private static final int BME280_OVERSAMPLING_PRESSURE_BITSHIFT = 2;
     private static final int BME280_OVERSAMPLING_TEMPERATURE_MASK = 0b11100000;
     private static final int BME280_OVERSAMPLING_TEMPERATURE_BITSHIFT = 5;
     private static final int BME280_OVERSAMPLING_HUMID_MASK = 0b00000111;       // Humidity support
     private static final int BME280_OVERSAMPLING_HUMID_BITSHIFT = 0;
+    private static final int BME280_FILTER_MASK = 0b00011100;
+    private static final int BME280_FILTER_BITSHIFT = 2;
+    private static final int BME280_STANDBY_MASK = 0b11100000;
+    private static final int BME280_STANDBY_BITSHIFT = 5;
 
-    private I2cDevice mDevice;
+    private Bus mBus;
     private final int[] mTempCalibrationData = new int[3];
     private final int[] mPressureCalibrationData = new int[9];
     private final int[] mHumidityCalibrationData = new int[6];       // Humidity support
-    private final byte[] mBuffer = new byte[3]; // for reading sensor values
-    private final byte[] mBuffer2 = new byte[2]; // for reading sensor values(Humidity support)
+    private final byte[] mDataBuffer = new byte[BME280_DATA_LENGTH]; // for burst reading sensor values
     private boolean mEnabled = false;
     private int mChipId;
-    private int mMode;
+    private boolean mHasHumidity;
+    private int mDataLength;
+    private volatile int mMode;
     private int mPressureOversampling;
     private int mTemperatureOversampling;
     private int mHumidityOversampling;       // Humidity support
+    private int mFilter;
+    private int mStandbyTime;
+    // Shadow copies of ctrl_hum, ctrl_meas and config, guarded by mWriteBuffer
+    private int mRegCtrlHumid;
+    private int mRegCtrl;
+    private int mRegConfig;
+    private final byte[] mWriteBuffer = new byte[8]; // register address and data pairs
+
+    // Latest background sample, published with a sequence lock. The sequence is odd while the
+    // sampling thread is writing and 0 until the first sample.
+    private volatile SamplingThread mSamplingThread;
+    private volatile int mSnapshotSeq;
+    private volatile float mSnapshotTemperature;
+    private volatile float mSnapshotPressure;
+    private volatile float mSnapshotHumidity;
+    private volatile int mSnapshotFineTemperature;
+    private volatile int mSnapshotTemperatureFixed;
+    private volatile long mSnapshotPressureFixed;
+    private volatile int mSnapshotHumidityFixed;
+    private int mCompensation = COMPENSATION_FLOAT;
+    private final Sample mSample = new Sample(); // guarded by mDataBuffer
 
     /**
      * Create a new BME280 sensor driver connected on the given bus.
@@ -173,10 +359,44 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     public BME280(String bus) throws IOException {
+        this(bus, INTERFACE_I2C, null);
+    }
+
+    /**
+     * Create a new BME280 sensor driver connected on the given bus, using a calibration cache.
+     * The trimming parameters are read from the cache file for this chip ID and bus address if
+     * it exists, otherwise they are read from the sensor and written to the cache. Delete the
+     * cache directory content when a sensor is replaced by another one of the same type.
+     * @param bus I2C bus the sensor is connected to.
+     * @param cacheDir directory for the calibration cache file.
+     * @throws IOException
+     */
+    public BME280(String bus, File cacheDir) throws IOException {
+        this(bus, INTERFACE_I2C, cacheDir);
+    }
+
+    /**
+     * Create a new BME280 sensor driver connected on the given I2C or SPI bus. SPI runs in
+     * mode 0 at {@link #SPI_MAX_FREQUENCY_HZ}.
+     * @param bus I2C or SPI bus the sensor is connected to.
+     * @param iface bus interface.
+     * @param cacheDir directory for the calibration cache file, or null for no cache.
+     * @throws IOException
+     */
+    public BME280(String bus, @Interface int iface, File cacheDir) throws IOException {
         PeripheralManagerService pioService = new PeripheralManagerService();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
         try {
-            connect(device);
+            String cacheName = "bme280_" + bus.replaceAll("[^A-Za-z0-9]", "_") + "_";
+            if (iface == INTERFACE_SPI) {
+                SpiBus spiBus = new SpiBus(pioService.openSpiDevice(bus));
+                mBus = spiBus;
+                spiBus.configure();
+                cacheName += "spi";
+            } else {
+                mBus = new I2cBus(pioService.openI2cDevice(bus, I2C_ADDRESS));
+                cacheName += Integer.toHexString(I2C_ADDRESS);
+            }
+            connect(cacheDir == null ? null : new File(cacheDir, cacheName));
         } catch (IOException|RuntimeException e) {
             try {
                 close();
@@ -192,53 +412,243 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     /*package*/  BME280(I2cDevice device) throws IOException {
-        connect(device);
+        mBus = new I2cBus(device);
+        connect(null);
+    }
+
+    /**
+     * Create a new BMP/BME280 sensor driver connected to the given SPI device. The device must
+     * already be configured for mode 0 or 3, 8 bits per word, MSB first.
+     * @param device SPI device of the sensor.
+     * @throws IOException
+     */
+    /*package*/  BME280(SpiDevice device) throws IOException {
+        mBus = new SpiBus(device);
+        connect(null);
     }
 
-    private void connect(I2cDevice device) throws IOException {
-        mDevice = device;
+    /**
+     * @param cacheBase calibration cache path without the chip ID suffix, or null to always
+     *                  read the calibration from the sensor.
+     */
+    private void connect(File cacheBase) throws IOException {
+        mChipId = mBus.readRegByte(BME280_REG_ID) & 0xff;
+        // Only the BME280 has a humidity sensor, the BMP280 has no humidity registers
+        mHasHumidity = (mChipId != CHIP_ID_BMP280);
+        mDataLength = mHasHumidity ? BME280_DATA_LENGTH : BMP280_DATA_LENGTH;
 
-        mChipId = mDevice.readRegByte(BME280_REG_ID);
+        byte[] block1 = new byte[BME280_CALIB_BLOCK_1_LENGTH];
+        byte[] block2 = new byte[mHasHumidity ? BME280_CALIB_BLOCK_2_LENGTH : 0];
+        File cacheFile = (cacheBase == null) ? null : new File(cacheBase.getPath()
+                + "_" + Integer.toHexString(mChipId) + ".cal");
+        if (cacheFile == null || !readCalibrationCache(cacheFile, block1, block2)) {
+            // Two block reads instead of one transaction per trimming parameter
+            mBus.readRegBuffer(BME280_REG_CALIB_BLOCK_1, block1, block1.length);
+            if (mHasHumidity) {
+                mBus.readRegBuffer(BME280_REG_CALIB_BLOCK_2, block2, block2.length);
+            }
+            if (cacheFile != null) {
+                writeCalibrationCache(cacheFile, block1, block2);
+            }
+        }
+        decodeCalibration(block1, block2, mTempCalibrationData, mPressureCalibrationData,
+                mHumidityCalibrationData);
 
-        // Read temperature calibration data (3 words). First value is unsigned.
-        mTempCalibrationData[0] = mDevice.readRegWord(BME280_REG_TEMP_CALIB_1) & 0xffff;
-        mTempCalibrationData[1] = (short) mDevice.readRegWord(BME280_REG_TEMP_CALIB_2);
-        mTempCalibrationData[2] = (short) mDevice.readRegWord(BME280_REG_TEMP_CALIB_3);
-        // Read pressure calibration data (9 words). First value is unsigned.
-        mPressureCalibrationData[0] = mDevice.readRegWord(BME280_REG_PRESS_CALIB_1) & 0xffff;
-        mPressureCalibrationData[1] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_2);
-        mPressureCalibrationData[2] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_3);
-        mPressureCalibrationData[3] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_4);
-        mPressureCalibrationData[4] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_5);
-        mPressureCalibrationData[5] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_6);
-        mPressureCalibrationData[6] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_7);
-        mPressureCalibrationData[7] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_8);
-        mPressureCalibrationData[8] = (short) mDevice.readRegWord(BME280_REG_PRESS_CALIB_9);
-        // Read humidity calibration data (3byte and 3word data) added Humidity support
-        mHumidityCalibrationData[0] = (mDevice.readRegByte(BME280_REG_HUMID_CALIB_1) & 0xFF);
-        mHumidityCalibrationData[1] = (short) mDevice.readRegWord(BME280_REG_HUMID_CALIB_2);
-        mHumidityCalibrationData[2] = (mDevice.readRegByte(BME280_REG_HUMID_CALIB_3) & 0xFF);
-        mHumidityCalibrationData[3] = (short) ((mDevice.readRegByte(BME280_REG_HUMID_CALIB_4) << 4)|(mDevice.readRegByte(BME280_REG_HUMID_CALIB_5)&0x00F));
-        mHumidityCalibrationData[4] = (short) (mDevice.readRegWord(BME280_REG_HUMID_CALIB_5) >> 4);
-        mHumidityCalibrationData[5] = mDevice.readRegByte(BME280_REG_HUMID_CALIB_6);
+        // Load the shadow registers (ctrl_hum, status, ctrl_meas, config) in one read
+        byte[] regs = new byte[BME280_REG_CONFIG - BME280_REG_CTRL_HUMID + 1];
+        mBus.readRegBuffer(BME280_REG_CTRL_HUMID, regs, regs.length);
+        mRegCtrlHumid = regs[0] & 0xff;
+        mRegCtrl = regs[BME280_REG_CTRL - BME280_REG_CTRL_HUMID] & 0xff;
+        mRegConfig = regs[BME280_REG_CONFIG - BME280_REG_CTRL_HUMID] & 0xff;
+        mHumidityOversampling = mHasHumidity
+                ? (mRegCtrlHumid & BME280_OVERSAMPLING_HUMID_MASK) >> BME280_OVERSAMPLING_HUMID_BITSHIFT
+                : OVERSAMPLING_SKIPPED;
+        mTemperatureOversampling = (mRegCtrl & BME280_OVERSAMPLING_TEMPERATURE_MASK) >> BME280_OVERSAMPLING_TEMPERATURE_BITSHIFT;
+        mPressureOversampling = (mRegCtrl & BME280_OVERSAMPLING_PRESSURE_MASK) >> BME280_OVERSAMPLING_PRESSURE_BITSHIFT;
+        mMode = ((mRegCtrl & BME280_POWER_MODE_MASK) == BME280_POWER_MODE_NORMAL) ? MODE_NORMAL : MODE_SLEEP;
+        mFilter = (mRegConfig & BME280_FILTER_MASK) >> BME280_FILTER_BITSHIFT;
+        mStandbyTime = (mRegConfig & BME280_STANDBY_MASK) >> BME280_STANDBY_BITSHIFT;
     }
 
+    private static boolean readCalibrationCache(File file, byte[] block1, byte[] block2) {
+        if (!file.isFile() || file.length() != block1.length + block2.length) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(block1);
+            in.readFully(block2);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read calibration cache " + file, e);
+            return false;
+        }
+    }
+
+    private static void writeCalibrationCache(File file, byte[] block1, byte[] block2) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(block1);
+            out.write(block2);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write calibration cache " + file, e);
+        }
+    }
+
+    /**
+     * Decodes the trimming parameters from the raw calibration blocks (little endian words).
+     * The humidity parameters are left untouched if block2 is empty (BMP280).
+     */
+    @VisibleForTesting
+    static void decodeCalibration(byte[] block1, byte[] block2, int[] tempCalibration,
+                                  int[] pressureCalibration, int[] humidityCalibration) {
+        // Temperature calibration data (3 words). First value is unsigned.
+        tempCalibration[0] = readCalibWord(block1, BME280_REG_TEMP_CALIB_1 - BME280_REG_CALIB_BLOCK_1) & 0xffff;
+        tempCalibration[1] = (short) readCalibWord(block1, BME280_REG_TEMP_CALIB_2 - BME280_REG_CALIB_BLOCK_1);
+        tempCalibration[2] = (short) readCalibWord(block1, BME280_REG_TEMP_CALIB_3 - BME280_REG_CALIB_BLOCK_1);
+        // Pressure calibration data (9 words). First value is unsigned.
+        pressureCalibration[0] = readCalibWord(block1, BME280_REG_PRESS_CALIB_1 - BME280_REG_CALIB_BLOCK_1) & 0xffff;
+        for (int i = 1; i < pressureCalibration.length; i++) {
+            pressureCalibration[i] = (short) readCalibWord(block1,
+                    BME280_REG_PRESS_CALIB_1 - BME280_REG_CALIB_BLOCK_1 + 2 * i);
+        }
+        if (block2.length == 0) {
+            return;
+        }
+        // Humidity calibration data (H1 and H3 unsigned bytes, H2 signed word, H4 and H5
+        // signed 12 bit values sharing 0xE5, H6 signed byte)
+        int e4 = block2[BME280_REG_HUMID_CALIB_4 - BME280_REG_CALIB_BLOCK_2];
+        int e5 = block2[BME280_REG_HUMID_CALIB_5 - BME280_REG_CALIB_BLOCK_2] & 0xff;
+        int e6 = block2[BME280_REG_HUMID_CALIB_5 + 1 - BME280_REG_CALIB_BLOCK_2];
+        humidityCalibration[0] = block1[BME280_REG_HUMID_CALIB_1 - BME280_REG_CALIB_BLOCK_1] & 0xff;
+        humidityCalibration[1] = (short) readCalibWord(block2, BME280_REG_HUMID_CALIB_2 - BME280_REG_CALIB_BLOCK_2);
+        humidityCalibration[2] = block2[BME280_REG_HUMID_CALIB_3 - BME280_REG_CALIB_BLOCK_2] & 0xff;
+        humidityCalibration[3] = (e4 << 4) | (e5 & 0x0f);
+        humidityCalibration[4] = (e6 << 4) | (e5 >> 4);
+        humidityCalibration[5] = block2[BME280_REG_HUMID_CALIB_6 - BME280_REG_CALIB_BLOCK_2];
+    }
 
+    private static int readCalibWord(byte[] block, int offset) {
+        return (block[offset] & 0xff) | ((block[offset + 1] & 0xff) << 8);
+    }
 
     /**
-     * Set the power mode of the sensor.
+     * Set the power mode of the sensor. {@link #MODE_FORCED} starts a single measurement after
+     * which the sensor returns to sleep; use {@link #readForced(Sample)} to wait for it.
+     * The other read methods require {@link #MODE_NORMAL} and throw IllegalStateException in
+     * sleep and forced mode. Only {@link #MODE_NORMAL} is accepted while background sampling
+     * runs.
      * @param mode power mode.
      * @throws IOException
      */
-    public void setMode(@Mode int mode) throws IOException {
-        int regCtrl = mDevice.readRegByte(BME280_REG_CTRL) & 0xff;
-        if (mode == MODE_SLEEP) {
-            regCtrl &= ~BME280_POWER_MODE_MASK;
-        } else {
-            regCtrl |= BME280_POWER_MODE_NORMAL;
+    public void setMode(@Mode int mode) throws IOException, IllegalStateException {
+        synchronized (mWriteBuffer) {
+            checkSamplingSettings(mode, mTemperatureOversampling);
+            mRegCtrl = (mRegCtrl & ~BME280_POWER_MODE_MASK) | modeBits(mode);
+            writeCtrl();
+            if (mode == MODE_FORCED) {
+                // The sensor goes back to sleep by itself after the measurement
+                mRegCtrl &= ~BME280_POWER_MODE_MASK;
+            }
+            mMode = mode;
+        }
+    }
+
+    /**
+     * Rejects settings the background sampler cannot run with. Callers must hold the
+     * mWriteBuffer lock, which {@link #startSampling()} also takes to check the settings.
+     */
+    private void checkSamplingSettings(@Mode int mode, @Oversampling int temperatureOversampling)
+            throws IllegalStateException {
+        if (mSamplingThread == null) {
+            return;
+        }
+        if (mode != MODE_NORMAL) {
+            throw new IllegalStateException("background sampling requires normal mode");
+        }
+        if (temperatureOversampling == OVERSAMPLING_SKIPPED) {
+            throw new IllegalStateException("temperature oversampling is skipped");
+        }
+    }
+
+    private static int modeBits(@Mode int mode) {
+        switch (mode) {
+            case MODE_FORCED:
+                return BME280_POWER_MODE_FORCED;
+            case MODE_NORMAL:
+                return BME280_POWER_MODE_NORMAL;
+            default:
+                return BME280_POWER_MODE_SLEEP;
+        }
+    }
+
+    /**
+     * Returns the maximum conversion time in microseconds for the active oversampling
+     * settings (datasheet appendix B, t_measure,max).
+     */
+    public int getMeasurementTimeMicros() {
+        int time = 1250 + 2300 * oversamplingRatio(mTemperatureOversampling);
+        if (mPressureOversampling != OVERSAMPLING_SKIPPED) {
+            time += 2300 * oversamplingRatio(mPressureOversampling) + 575;
+        }
+        if (mHumidityOversampling != OVERSAMPLING_SKIPPED) {
+            time += 2300 * oversamplingRatio(mHumidityOversampling) + 575;
+        }
+        return time;
+    }
+
+    private static int oversamplingRatio(@Oversampling int oversampling) {
+        return (oversampling == OVERSAMPLING_SKIPPED) ? 0 : 1 << (oversampling - 1);
+    }
+
+    /**
+     * Run a single forced mode measurement and read the result into a caller-supplied holder.
+     * Waits for the expected conversion time of the active oversampling settings, then
+     * confirms with the status register that the conversion has finished and the data
+     * registers are not being updated before the burst read. Other reads are not blocked while
+     * waiting. The sensor is left in {@link #MODE_SLEEP}. Not available while background
+     * sampling runs.
+     *
+     * @param sample holder that receives the compensated values.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void readForced(Sample sample) throws IOException, IllegalStateException, InterruptedException {
+        if (mBus == null) {
+            throw new IllegalStateException("device is already closed");
+        }
+        if (mTemperatureOversampling == OVERSAMPLING_SKIPPED) {
+            throw new IllegalStateException("temperature oversampling is skipped");
+        }
+        setMode(MODE_FORCED);
+        try {
+            int wait = getMeasurementTimeMicros();
+            Thread.sleep(wait / 1000, (wait % 1000) * 1000);
+            int polls = 0;
+            while ((mBus.readRegByte(BME280_REG_STATUS)
+                    & (BME280_STATUS_MEASURING | BME280_STATUS_IM_UPDATE)) != 0) {
+                if (++polls > BME280_STATUS_POLL_MAX) {
+                    throw new IOException("forced measurement did not complete");
+                }
+                Thread.sleep(0, 500000);
+            }
+            readAllFromBus(sample);
+        } finally {
+            synchronized (mWriteBuffer) {
+                // The sensor is back in sleep mode, unless the mode was changed meanwhile
+                if (mMode == MODE_FORCED) {
+                    mMode = MODE_SLEEP;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects bus reads outside normal mode. In sleep mode the data registers keep the result
+     * of the last conversion, which would be returned as a new reading.
+     */
+    private void checkNormalMode() throws IllegalStateException {
+        if (mMode != MODE_NORMAL) {
+            throw new IllegalStateException("sensor is not in normal mode, use readForced()");
         }
-        mDevice.writeRegByte(BME280_REG_CTRL, (byte)(regCtrl));
-        mMode = mode;
     }
 
     /**
@@ -246,15 +656,15 @@ public class BME280 implements AutoCloseable {
      * @param oversampling temperature oversampling multiplier.
      * @throws IOException
      */
-    public void setTemperatureOversampling(@Oversampling int oversampling) throws IOException {
-        int regCtrl = mDevice.readRegByte(BME280_REG_CTRL) & 0xff;
-        if (oversampling == OVERSAMPLING_SKIPPED) {
-            regCtrl &= ~BME280_OVERSAMPLING_TEMPERATURE_MASK;
-        } else {
-            regCtrl |= 1 << BME280_OVERSAMPLING_TEMPERATURE_BITSHIFT;
+    public void setTemperatureOversampling(@Oversampling int oversampling)
+            throws IOException, IllegalStateException {
+        synchronized (mWriteBuffer) {
+            checkSamplingSettings(mMode, oversampling);
+            mRegCtrl = (mRegCtrl & ~BME280_OVERSAMPLING_TEMPERATURE_MASK)
+                    | ((oversampling << BME280_OVERSAMPLING_TEMPERATURE_BITSHIFT) & BME280_OVERSAMPLING_TEMPERATURE_MASK);
+            writeCtrl();
+            mTemperatureOversampling = oversampling;
         }
-        mDevice.writeRegByte(BME280_REG_CTRL, (byte)(regCtrl));
-        mTemperatureOversampling = oversampling;
     }
 
     /**
@@ -263,16 +673,13 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     public void setPressureOversampling(@Oversampling int oversampling) throws IOException {
-        int regCtrl = mDevice.readRegByte(BME280_REG_CTRL) & 0xff;
-        if (oversampling == OVERSAMPLING_SKIPPED) {
-            regCtrl &= ~BME280_OVERSAMPLING_PRESSURE_MASK;
-            mEnabled = false;
-        } else {
-            regCtrl |= 1 << BME280_OVERSAMPLING_PRESSURE_BITSHIFT;
-            mEnabled = true;
+        synchronized (mWriteBuffer) {
+            mRegCtrl = (mRegCtrl & ~BME280_OVERSAMPLING_PRESSURE_MASK)
+                    | ((oversampling << BME280_OVERSAMPLING_PRESSURE_BITSHIFT) & BME280_OVERSAMPLING_PRESSURE_MASK);
+            writeCtrl();
+            mEnabled = (oversampling != OVERSAMPLING_SKIPPED);
+            mPressureOversampling = oversampling;
         }
-        mDevice.writeRegByte(BME280_REG_CTRL, (byte)(regCtrl));
-        mPressureOversampling = oversampling;
     }
 
     /**
@@ -280,17 +687,211 @@ public class BME280 implements AutoCloseable {
      * @param oversampling pressure humidity multiplier.
      * @throws IOException
      */
-    public void setHumidityOversampling(@Oversampling int oversampling) throws IOException {
-        int regCtrl = mDevice.readRegByte(BME280_REG_CTRL_HUMID) & 0xff;
-        if (oversampling == OVERSAMPLING_SKIPPED) {
-            regCtrl &= ~BME280_OVERSAMPLING_HUMID_MASK;
-            mEnabled = false;
-        } else {
-            regCtrl |= 1 << BME280_OVERSAMPLING_HUMID_BITSHIFT;
-            mEnabled = true;
+    public void setHumidityOversampling(@Oversampling int oversampling) throws IOException, IllegalStateException {
+        if (!mHasHumidity) {
+            throw new IllegalStateException("humidity is not supported by BMP280");
+        }
+        synchronized (mWriteBuffer) {
+            mRegCtrlHumid = (mRegCtrlHumid & ~BME280_OVERSAMPLING_HUMID_MASK)
+                    | ((oversampling << BME280_OVERSAMPLING_HUMID_BITSHIFT) & BME280_OVERSAMPLING_HUMID_MASK);
+            // Changes to ctrl_hum only become effective after a write to ctrl_meas
+            int length = 0;
+            mWriteBuffer[length++] = (byte) BME280_REG_CTRL_HUMID;
+            mWriteBuffer[length++] = (byte) mRegCtrlHumid;
+            mWriteBuffer[length++] = (byte) BME280_REG_CTRL;
+            mWriteBuffer[length++] = (byte) mRegCtrl;
+            writeRegisters(length);
+            mEnabled = (oversampling != OVERSAMPLING_SKIPPED);
+            mHumidityOversampling = oversampling;
+        }
+    }
+
+    /**
+     * Set the IIR filter coefficient.
+     * @param filter filter coefficient.
+     * @throws IOException
+     */
+    public void setFilter(@Filter int filter) throws IOException {
+        synchronized (mWriteBuffer) {
+            mRegConfig = (mRegConfig & ~BME280_FILTER_MASK)
+                    | ((filter << BME280_FILTER_BITSHIFT) & BME280_FILTER_MASK);
+            writeConfig();
+            mFilter = filter;
+        }
+    }
+
+    /**
+     * Set the inactive duration between measurements in normal mode.
+     * @param standbyTime standby time.
+     * @throws IOException
+     */
+    public void setStandbyTime(@StandbyTime int standbyTime) throws IOException {
+        synchronized (mWriteBuffer) {
+            mRegConfig = (mRegConfig & ~BME280_STANDBY_MASK)
+                    | ((standbyTime << BME280_STANDBY_BITSHIFT) & BME280_STANDBY_MASK);
+            writeConfig();
+            mStandbyTime = standbyTime;
+        }
+    }
+
+    /**
+     * Apply a whole configuration in a single bus transaction. The registers are written in
+     * the order required by the datasheet: the sensor is put to sleep so that the config
+     * write is not ignored, then ctrl_hum and config are written, and the final ctrl_meas
+     * write latches ctrl_hum and starts the requested mode. While background sampling runs,
+     * the mode must stay {@link #MODE_NORMAL}.
+     * @param temperatureOversampling temperature oversampling multiplier.
+     * @param pressureOversampling pressure oversampling multiplier.
+     * @param humidityOversampling humidity oversampling multiplier.
+     * @param filter IIR filter coefficient.
+     * @param standbyTime standby time in normal mode.
+     * @param mode power mode.
+     * @throws IOException
+     */
+    public void configure(@Oversampling int temperatureOversampling,
+                          @Oversampling int pressureOversampling,
+                          @Oversampling int humidityOversampling,
+                          @Filter int filter, @StandbyTime int standbyTime,
+                          @Mode int mode) throws IOException, IllegalStateException {
+        if (!mHasHumidity && humidityOversampling != OVERSAMPLING_SKIPPED) {
+            throw new IllegalStateException("humidity is not supported by BMP280");
+        }
+        synchronized (mWriteBuffer) {
+            checkSamplingSettings(mode, temperatureOversampling);
+            mRegCtrlHumid = (mRegCtrlHumid & ~BME280_OVERSAMPLING_HUMID_MASK)
+                    | ((humidityOversampling << BME280_OVERSAMPLING_HUMID_BITSHIFT) & BME280_OVERSAMPLING_HUMID_MASK);
+            mRegConfig = (mRegConfig & ~(BME280_FILTER_MASK | BME280_STANDBY_MASK))
+                    | ((filter << BME280_FILTER_BITSHIFT) & BME280_FILTER_MASK)
+                    | ((standbyTime << BME280_STANDBY_BITSHIFT) & BME280_STANDBY_MASK);
+            mRegCtrl = ((temperatureOversampling << BME280_OVERSAMPLING_TEMPERATURE_BITSHIFT) & BME280_OVERSAMPLING_TEMPERATURE_MASK)
+                    | ((pressureOversampling << BME280_OVERSAMPLING_PRESSURE_BITSHIFT) & BME280_OVERSAMPLING_PRESSURE_MASK)
+                    | modeBits(mode);
+
+            int length = 0;
+            mWriteBuffer[length++] = (byte) BME280_REG_CTRL;
+            mWriteBuffer[length++] = (byte) (mRegCtrl & ~BME280_POWER_MODE_MASK);
+            if (mHasHumidity) {
+                mWriteBuffer[length++] = (byte) BME280_REG_CTRL_HUMID;
+                mWriteBuffer[length++] = (byte) mRegCtrlHumid;
+            }
+            mWriteBuffer[length++] = (byte) BME280_REG_CONFIG;
+            mWriteBuffer[length++] = (byte) mRegConfig;
+            mWriteBuffer[length++] = (byte) BME280_REG_CTRL;
+            mWriteBuffer[length++] = (byte) mRegCtrl;
+            writeRegisters(length);
+            if (mode == MODE_FORCED) {
+                mRegCtrl &= ~BME280_POWER_MODE_MASK;
+            }
+
+            mTemperatureOversampling = temperatureOversampling;
+            mPressureOversampling = pressureOversampling;
+            mHumidityOversampling = humidityOversampling;
+            mEnabled = (pressureOversampling != OVERSAMPLING_SKIPPED)
+                    || (humidityOversampling != OVERSAMPLING_SKIPPED);
+            mFilter = filter;
+            mStandbyTime = standbyTime;
+            mMode = mode;
+        }
+    }
+
+    /**
+     * Writes the ctrl_meas shadow register. Callers must hold the mWriteBuffer lock.
+     * @throws IOException
+     */
+    private void writeCtrl() throws IOException {
+        mWriteBuffer[0] = (byte) BME280_REG_CTRL;
+        mWriteBuffer[1] = (byte) mRegCtrl;
+        writeRegisters(2);
+    }
+
+    /**
+     * Writes the config shadow register. Writes to config in normal mode may be ignored, so
+     * the sensor is put to sleep first and ctrl_meas is restored afterwards in the same
+     * transaction. Callers must hold the mWriteBuffer lock.
+     * @throws IOException
+     */
+    private void writeConfig() throws IOException {
+        int length = 0;
+        if ((mRegCtrl & BME280_POWER_MODE_MASK) != BME280_POWER_MODE_SLEEP) {
+            mWriteBuffer[length++] = (byte) BME280_REG_CTRL;
+            mWriteBuffer[length++] = (byte) (mRegCtrl & ~BME280_POWER_MODE_MASK);
         }
-        mDevice.writeRegByte(BME280_REG_CTRL_HUMID, (byte)(regCtrl));
-        mHumidityOversampling = oversampling;
+        mWriteBuffer[length++] = (byte) BME280_REG_CONFIG;
+        mWriteBuffer[length++] = (byte) mRegConfig;
+        if ((mRegCtrl & BME280_POWER_MODE_MASK) != BME280_POWER_MODE_SLEEP) {
+            mWriteBuffer[length++] = (byte) BME280_REG_CTRL;
+            mWriteBuffer[length++] = (byte) mRegCtrl;
+        }
+        writeRegisters(length);
+    }
+
+    /**
+     * Writes length bytes of register address and data pairs from mWriteBuffer in one
+     * transaction. Callers must hold the mWriteBuffer lock.
+     * @throws IOException
+     */
+    private void writeRegisters(int length) throws IOException, IllegalStateException {
+        if (mBus == null) {
+            throw new IllegalStateException("device is already closed");
+        }
+        mBus.write(mWriteBuffer, length);
+    }
+
+    /**
+     * Returns the IIR filter coefficient.
+     */
+    @Filter
+    public int getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Returns the standby time in normal mode.
+     */
+    @StandbyTime
+    public int getStandbyTime() {
+        return mStandbyTime;
+    }
+
+    /**
+     * Returns the temperature oversampling multiplier.
+     */
+    @Oversampling
+    public int getTemperatureOversampling() {
+        return mTemperatureOversampling;
+    }
+
+    /**
+     * Returns the pressure oversampling multiplier.
+     */
+    @Oversampling
+    public int getPressureOversampling() {
+        return mPressureOversampling;
+    }
+
+    /**
+     * Returns the humidity oversampling multiplier.
+     */
+    @Oversampling
+    public int getHumidityOversampling() {
+        return mHumidityOversampling;
+    }
+
+    /**
+     * Select the arithmetic used to compensate raw samples. {@link #COMPENSATION_FIXED} follows
+     * the Bosch integer reference and avoids floating point math on boards with a weak FPU.
+     * @param compensation compensation arithmetic.
+     */
+    public void setCompensation(@Compensation int compensation) {
+        mCompensation = compensation;
+    }
+
+    /**
+     * Returns the arithmetic used to compensate raw samples.
+     */
+    @Compensation
+    public int getCompensation() {
+        return mCompensation;
     }
 
     /**
@@ -298,11 +899,12 @@ public class BME280 implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
-        if (mDevice != null) {
+        stopSampling();
+        if (mBus != null) {
             try {
-                mDevice.close();
+                mBus.close();
             } finally {
-                mDevice = null;
+                mBus = null;
             }
         }
     }
@@ -314,6 +916,21 @@ public class BME280 implements AutoCloseable {
         return mChipId;
     }
 
+    /**
+     * Returns a copy of the trimming parameters read from the sensor.
+     */
+    public Calibration getCalibration() {
+        return new Calibration(mTempCalibrationData, mPressureCalibrationData,
+                mHumidityCalibrationData);
+    }
+
+    /**
+     * Returns true if the sensor measures humidity (BME280), false for a BMP280.
+     */
+    public boolean hasHumidity() {
+        return mHasHumidity;
+    }
+
     /**
      * Read the current temperature.
      *
@@ -323,8 +940,16 @@ public class BME280 implements AutoCloseable {
         if (mTemperatureOversampling == OVERSAMPLING_SKIPPED) {
             throw new IllegalStateException("temperature oversampling is skipped");
         }
-        int rawTemp = readSample(BME280_REG_TEMP);
-        return compensateTemperature(rawTemp, mTempCalibrationData)[0];
+        if (mSamplingThread != null && mSnapshotSeq != 0) {
+            return mSnapshotTemperature;
+        }
+        checkNormalMode();
+        synchronized (mDataBuffer) {
+            readDataBlock(BME280_REG_TEMP, BME280_DATA_OFFSET_HUMID - BME280_DATA_OFFSET_TEMP);
+            int rawTemp = decodeSample(mDataBuffer, 0);
+            compensate(rawTemp, BME280_SAMPLE_SKIPPED, BME280_SAMPLE_SKIPPED, mSample);
+            return mSample.temperature;
+        }
     }
 
     /**
@@ -336,8 +961,14 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     public float readPressure() throws IOException, IllegalStateException {
-        float[] values = readTemperatureAndPressure();
-        return values[1];
+        if (mSamplingThread != null && mSnapshotSeq != 0
+                && mPressureOversampling != OVERSAMPLING_SKIPPED) {
+            return mSnapshotPressure;
+        }
+        synchronized (mDataBuffer) {
+            readTemperatureAndPressure(mSample);
+            return mSample.pressure;
+        }
     }
 
     /**
@@ -349,8 +980,14 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     public float readHumidity() throws IOException, IllegalStateException {
-        float[] values = readTemperatureAndHumidity();
-        return values[1];
+        if (mSamplingThread != null && mSnapshotSeq != 0
+                && mHumidityOversampling != OVERSAMPLING_SKIPPED) {
+            return mSnapshotHumidity;
+        }
+        synchronized (mDataBuffer) {
+            readTemperatureAndHumidity(mSample);
+            return mSample.humidity;
+        }
     }
 
 
@@ -363,19 +1000,60 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     public float[] readTemperatureAndPressure() throws IOException, IllegalStateException {
+        float[] values = new float[2];
+        readTemperatureAndPressure(values, 0);
+        return values;
+    }
+
+    /**
+     * Read the current temperature and barometric pressure into a caller-supplied array.
+     *
+     * @param values array that receives temperature in degrees Celsius at offset and barometric
+     * pressure in hPa units at offset + 1.
+     * @param offset index of the first element to write.
+     * @throws IOException
+     */
+    public void readTemperatureAndPressure(float[] values, int offset)
+            throws IOException, IllegalStateException {
+        if (mSamplingThread != null && mPressureOversampling != OVERSAMPLING_SKIPPED
+                && readSnapshot(values, offset, true, false)) {
+            return;
+        }
+        synchronized (mDataBuffer) {
+            readTemperatureAndPressure(mSample);
+            values[offset] = mSample.temperature;
+            values[offset + 1] = mSample.pressure;
+        }
+    }
+
+    /**
+     * Read the current temperature and barometric pressure into a caller-supplied holder.
+     * Humidity is set to {@link Float#NaN}. Does not allocate.
+     *
+     * @param sample holder that receives the compensated values.
+     * @throws IOException
+     */
+    public void readTemperatureAndPressure(Sample sample) throws IOException, IllegalStateException {
         if (mTemperatureOversampling == OVERSAMPLING_SKIPPED) {
             throw new IllegalStateException("temperature oversampling is skipped");
         }
         if (mPressureOversampling == OVERSAMPLING_SKIPPED) {
             throw new IllegalStateException("pressure oversampling is skipped");
         }
-        // The pressure compensation formula requires the fine temperature reading, so we always
-        // read temperature first.
-        int rawTemp = readSample(BME280_REG_TEMP);
-        float[] temperatures = compensateTemperature(rawTemp, mTempCalibrationData);
-        int rawPressure = readSample(BME280_REG_PRESS);
-        float pressure = compensatePressure(rawPressure, temperatures[1], mPressureCalibrationData);
-        return new float[]{temperatures[0], pressure};
+        if (mSamplingThread != null && readSnapshot(sample) != 0) {
+            sample.humidity = Float.NaN;
+            sample.humidityFixed = 0;
+            return;
+        }
+        // Temperature and pressure are read in one burst so that both come from the same
+        // conversion cycle. The pressure compensation formula requires the fine temperature.
+        checkNormalMode();
+        synchronized (mDataBuffer) {
+            readDataBlock(BME280_REG_PRESS, BME280_DATA_OFFSET_HUMID);
+            int rawPressure = decodeSample(mDataBuffer, BME280_DATA_OFFSET_PRESS);
+            int rawTemp = decodeSample(mDataBuffer, BME280_DATA_OFFSET_TEMP);
+            compensate(rawTemp, rawPressure, BME280_SAMPLE_SKIPPED, sample);
+        }
     }
 
     /**
@@ -386,57 +1064,460 @@ public class BME280 implements AutoCloseable {
      * @throws IOException
      */
     public float[] readTemperatureAndHumidity() throws IOException, IllegalStateException {
+        float[] values = new float[2];
+        readTemperatureAndHumidity(values, 0);
+        return values;
+    }
+
+    /**
+     * Read the current temperature and humidity into a caller-supplied array.
+     *
+     * @param values array that receives temperature in degrees Celsius at offset and humidity
+     * in % units at offset + 1.
+     * @param offset index of the first element to write.
+     * @throws IOException
+     */
+    public void readTemperatureAndHumidity(float[] values, int offset)
+            throws IOException, IllegalStateException {
+        if (mSamplingThread != null && mHumidityOversampling != OVERSAMPLING_SKIPPED
+                && readSnapshot(values, offset, false, true)) {
+            return;
+        }
+        synchronized (mDataBuffer) {
+            readTemperatureAndHumidity(mSample);
+            values[offset] = mSample.temperature;
+            values[offset + 1] = mSample.humidity;
+        }
+    }
+
+    /**
+     * Read the current temperature and humidity into a caller-supplied holder. Pressure is set
+     * to {@link Float#NaN}. Does not allocate.
+     *
+     * @param sample holder that receives the compensated values.
+     * @throws IOException
+     */
+    public void readTemperatureAndHumidity(Sample sample) throws IOException, IllegalStateException {
+        if (!mHasHumidity) {
+            throw new IllegalStateException("humidity is not supported by BMP280");
+        }
         if (mTemperatureOversampling == OVERSAMPLING_SKIPPED) {
             throw new IllegalStateException("temperature oversampling is skipped");
         }
         if (mHumidityOversampling == OVERSAMPLING_SKIPPED) {
             throw new IllegalStateException("humidity oversampling is skipped");
         }
-        // The pressure compensation formula requires the fine temperature reading, so we always
-        // read temperature first.
-        int rawTemp = readSample(BME280_REG_TEMP);
-        float[] temperatures = compensateTemperature(rawTemp, mTempCalibrationData);
-        int rawHumidity = readSample16bit(BME280_REG_HUMID);
-        float humidity = compensateHumidity(rawHumidity, temperatures[1], mHumidityCalibrationData);
-        return new float[]{temperatures[0], humidity};
+        if (mSamplingThread != null && readSnapshot(sample) != 0) {
+            sample.pressure = Float.NaN;
+            sample.pressureFixed = 0;
+            return;
+        }
+        // Temperature and humidity are read in one burst so that both come from the same
+        // conversion cycle. The humidity compensation formula requires the fine temperature.
+        checkNormalMode();
+        synchronized (mDataBuffer) {
+            readDataBlock(BME280_REG_TEMP, BME280_DATA_LENGTH - BME280_DATA_OFFSET_TEMP);
+            int rawTemp = decodeSample(mDataBuffer, 0);
+            int rawHumidity = decodeSample16bit(mDataBuffer,
+                    BME280_DATA_OFFSET_HUMID - BME280_DATA_OFFSET_TEMP);
+            compensate(rawTemp, BME280_SAMPLE_SKIPPED, rawHumidity, sample);
+        }
     }
 
+    /**
+     * Read the current temperature, barometric pressure and humidity. All values are compensated
+     * from a single burst read of the measurement registers, so they come from the same
+     * conversion cycle.
+     *
+     * @return a 3-element array. The first element is temperature in degrees Celsius, the second
+     * is barometric pressure in hPa units and the third is humidity in % units. Pressure or
+     * humidity is {@link Float#NaN} if its oversampling is skipped.
+     * @throws IOException
+     */
+    public float[] readAll() throws IOException, IllegalStateException {
+        if (mSamplingThread != null && mTemperatureOversampling != OVERSAMPLING_SKIPPED) {
+            float[] values = new float[3];
+            if (readSnapshot(values, 0, true, true)) {
+                return values;
+            }
+        }
+        synchronized (mDataBuffer) {
+            readAll(mSample);
+            return new float[]{mSample.temperature, mSample.pressure, mSample.humidity};
+        }
+    }
 
     /**
-     * Reads 20 bits from the given address.
+     * Read the current temperature, barometric pressure and humidity into a caller-supplied
+     * holder with a single burst read. Pressure or humidity is {@link Float#NaN} if its
+     * oversampling is skipped. Does not allocate.
+     *
+     * @param sample holder that receives the compensated values.
      * @throws IOException
      */
-    private int readSample(int address) throws IOException, IllegalStateException {
-        if (mDevice == null) {
-            throw new IllegalStateException("I2C device is already closed");
+    public void readAll(Sample sample) throws IOException, IllegalStateException {
+        if (mTemperatureOversampling == OVERSAMPLING_SKIPPED) {
+            throw new IllegalStateException("temperature oversampling is skipped");
+        }
+        if (mSamplingThread != null && readSnapshot(sample) != 0) {
+            return;
+        }
+        checkNormalMode();
+        readAllFromBus(sample);
+    }
+
+    private void readAllFromBus(Sample sample) throws IOException, IllegalStateException {
+        synchronized (mDataBuffer) {
+            // 8 bytes on a BME280, 6 bytes on a BMP280
+            readDataBlock(BME280_REG_PRESS, mDataLength);
+            int rawPressure = decodeSample(mDataBuffer, BME280_DATA_OFFSET_PRESS);
+            int rawTemp = decodeSample(mDataBuffer, BME280_DATA_OFFSET_TEMP);
+            int rawHumidity = mHasHumidity
+                    ? decodeSample16bit(mDataBuffer, BME280_DATA_OFFSET_HUMID)
+                    : BME280_SAMPLE_SKIPPED;
+            if (mPressureOversampling == OVERSAMPLING_SKIPPED) {
+                rawPressure = BME280_SAMPLE_SKIPPED;
+            }
+            if (mHumidityOversampling == OVERSAMPLING_SKIPPED) {
+                rawHumidity = BME280_SAMPLE_SKIPPED;
+            }
+            compensate(rawTemp, rawPressure, rawHumidity, sample);
+        }
+    }
+
+    /**
+     * Start a background thread that reads the sensor once per normal mode measurement period
+     * (conversion time plus standby time). While it runs, the read methods return the latest
+     * published sample without touching the bus or taking a lock. The sensor must be in
+     * {@link #MODE_NORMAL}, and other modes are rejected until {@link #stopSampling()}.
+     */
+    public synchronized void startSampling() throws IllegalStateException {
+        // Under the settings lock, so that the mode cannot change between check and start
+        synchronized (mWriteBuffer) {
+            if (mMode != MODE_NORMAL) {
+                throw new IllegalStateException("background sampling requires normal mode");
+            }
+            if (mTemperatureOversampling == OVERSAMPLING_SKIPPED) {
+                throw new IllegalStateException("temperature oversampling is skipped");
+            }
+            if (mSamplingThread == null) {
+                mSnapshotSeq = 0;
+                mSamplingThread = new SamplingThread();
+                mSamplingThread.start();
+            }
+        }
+    }
+
+    /**
+     * Stop the background sampling thread and wait for it to finish. Read methods go to the bus
+     * again afterwards.
+     */
+    public synchronized void stopSampling() {
+        SamplingThread thread = mSamplingThread;
+        if (thread == null) {
+            return;
+        }
+        mSamplingThread = null;
+        thread.quit();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copy the latest background sample into a caller-supplied holder. Does not block or
+     * allocate.
+     *
+     * @param sample holder that receives the compensated values.
+     * @return the sequence number of the sample, which increases with every new sample, or 0
+     * if no sample has been published yet.
+     */
+    public int getLatestSample(Sample sample) {
+        return readSnapshot(sample);
+    }
+
+    private int readSnapshot(Sample out) {
+        int seq;
+        do {
+            seq = mSnapshotSeq;
+            out.temperature = mSnapshotTemperature;
+            out.pressure = mSnapshotPressure;
+            out.humidity = mSnapshotHumidity;
+            out.fineTemperature = mSnapshotFineTemperature;
+            out.temperatureFixed = mSnapshotTemperatureFixed;
+            out.pressureFixed = mSnapshotPressureFixed;
+            out.humidityFixed = mSnapshotHumidityFixed;
+        } while ((seq & 1) != 0 || seq != mSnapshotSeq);
+        return seq;
+    }
+
+    private boolean readSnapshot(float[] values, int offset, boolean pressure, boolean humidity) {
+        int seq;
+        float temperatureValue, pressureValue, humidityValue;
+        do {
+            seq = mSnapshotSeq;
+            temperatureValue = mSnapshotTemperature;
+            pressureValue = mSnapshotPressure;
+            humidityValue = mSnapshotHumidity;
+        } while ((seq & 1) != 0 || seq != mSnapshotSeq);
+        if (seq == 0) {
+            return false;
+        }
+        values[offset++] = temperatureValue;
+        if (pressure) {
+            values[offset++] = pressureValue;
+        }
+        if (humidity) {
+            values[offset] = humidityValue;
+        }
+        return true;
+    }
+
+    private class SamplingThread extends Thread {
+
+        private volatile boolean mRunning = true;
+        private final Sample mThreadSample = new Sample();
+
+        SamplingThread() {
+            super(TAG + "-sampling");
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                try {
+                    readAllFromBus(mThreadSample);
+                    // Only this thread writes the snapshot
+                    int seq = mSnapshotSeq;
+                    mSnapshotSeq = seq + 1;
+                    mSnapshotTemperature = mThreadSample.temperature;
+                    mSnapshotPressure = mThreadSample.pressure;
+                    mSnapshotHumidity = mThreadSample.humidity;
+                    mSnapshotFineTemperature = mThreadSample.fineTemperature;
+                    mSnapshotTemperatureFixed = mThreadSample.temperatureFixed;
+                    mSnapshotPressureFixed = mThreadSample.pressureFixed;
+                    mSnapshotHumidityFixed = mThreadSample.humidityFixed;
+                    // Skip 0, which means "no sample yet", when the sequence wraps around
+                    mSnapshotSeq = (seq + 2 == 0) ? 2 : seq + 2;
+
+                    int period = getMeasurementTimeMicros() + (mHasHumidity
+                            ? BME280_STANDBY_MICROS : BMP280_STANDBY_MICROS)[mStandbyTime];
+                    Thread.sleep(period / 1000, (period % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException|IllegalStateException e) {
+                    Log.e(TAG, "Background sampling stopped", e);
+                    break;
+                }
+            }
+            // Fall back to bus reads if the thread stopped on its own
+            if (mSamplingThread == this) {
+                mSamplingThread = null;
+            }
         }
-        synchronized (mBuffer) {
-            mDevice.readRegBuffer(address, mBuffer, 3);
-            // msb[7:0] lsb[7:0] xlsb[7:4]
-            int msb = mBuffer[0] & 0xff;
-            int lsb = mBuffer[1] & 0xff;
-            int xlsb = mBuffer[2] & 0xf0;
-            // Convert to 20bit integer
-            return (msb << 16 | lsb << 8 | xlsb) >> 4;
+
+        public void quit() {
+            mRunning = false;
+            interrupt();
         }
     }
 
     /**
-     * Reads 16 bits from the given address.
+     * Compensates raw values with the selected arithmetic. Skipped pressure or humidity is
+     * reported as {@link Float#NaN}. The float formulas set the fixed-point fields to 0.
+     */
+    private void compensate(int rawTemp, int rawPressure, int rawHumidity, Sample out) {
+        compensate(mCompensation, mTempCalibrationData, mPressureCalibrationData,
+                mHumidityCalibrationData, rawTemp, rawPressure, rawHumidity, out);
+    }
+
+    /*package*/ static void compensate(int compensation, int[] tempCalibration,
+                                       int[] pressureCalibration, int[] humidityCalibration,
+                                       int rawTemp, int rawPressure, int rawHumidity,
+                                       Sample out) {
+        if (compensation == COMPENSATION_FIXED) {
+            compensateFixed(rawTemp, rawPressure, rawHumidity, tempCalibration,
+                    pressureCalibration, humidityCalibration, out);
+            return;
+        }
+        // A reused holder must not keep fixed-point results of an earlier compensation
+        out.fineTemperature = 0;
+        out.temperatureFixed = 0;
+        out.pressureFixed = 0;
+        out.humidityFixed = 0;
+        float fineTemp = compensateFineTemperature(rawTemp, tempCalibration);
+        out.temperature = fineTemp / 5120.0f;
+        out.pressure = (rawPressure == BME280_SAMPLE_SKIPPED) ? Float.NaN
+                : compensatePressure(rawPressure, fineTemp, pressureCalibration);
+        out.humidity = (rawHumidity == BME280_SAMPLE_SKIPPED) ? Float.NaN
+                : compensateHumidity(rawHumidity, fineTemp, humidityCalibration);
+    }
+
+    // Batches smaller than this are not split any further by compensateParallel()
+    private static final int BULK_PARALLEL_THRESHOLD = 8192;
+
+    /**
+     * Compensate columns of raw samples in one pass, e.g. when replaying raw logs. A raw value
+     * of -1 marks a skipped measurement and gives {@link Float#NaN}.
+     * Does not allocate.
+     *
+     * @param calibration trimming parameters of the sensor that produced the samples.
+     * @param compensation compensation arithmetic.
+     * @param rawTemp raw temperature column.
+     * @param rawPressure raw pressure column, or null to skip pressure.
+     * @param rawHumidity raw humidity column, or null to skip humidity.
+     * @param temperature receives temperature in degrees Celsius, same length as rawTemp.
+     * @param pressure receives pressure in hPa, or null if rawPressure is null.
+     * @param humidity receives humidity in %, or null if rawHumidity is null.
+     */
+    public static void compensate(Calibration calibration, @Compensation int compensation,
+                                  int[] rawTemp, int[] rawPressure, int[] rawHumidity,
+                                  float[] temperature, float[] pressure, float[] humidity) {
+        compensateRange(calibration, compensation, rawTemp, rawPressure, rawHumidity,
+                temperature, pressure, humidity, 0, rawTemp.length);
+    }
+
+    /**
+     * Same as {@link #compensate(Calibration, int, int[], int[], int[], float[], float[], float[])}
+     * but splits large batches across the common fork/join pool.
+     */
+    public static void compensateParallel(final Calibration calibration,
+                                          @Compensation final int compensation,
+                                          final int[] rawTemp, final int[] rawPressure,
+                                          final int[] rawHumidity, final float[] temperature,
+                                          final float[] pressure, final float[] humidity) {
+        ForkJoinPool.commonPool().invoke(new BulkCompensation(calibration, compensation,
+                rawTemp, rawPressure, rawHumidity, temperature, pressure, humidity,
+                0, rawTemp.length));
+    }
+
+    // Only run in the fork/join pool, never serialized
+    @SuppressWarnings("serial")
+    private static class BulkCompensation extends RecursiveAction {
+        private final Calibration mCalibration;
+        private final int mCompensation;
+        private final int[] mRawTemp, mRawPressure, mRawHumidity;
+        private final float[] mTemperature, mPressure, mHumidity;
+        private final int mFrom, mTo;
+
+        BulkCompensation(Calibration calibration, int compensation,
+                         int[] rawTemp, int[] rawPressure, int[] rawHumidity,
+                         float[] temperature, float[] pressure, float[] humidity,
+                         int from, int to) {
+            mCalibration = calibration;
+            mCompensation = compensation;
+            mRawTemp = rawTemp;
+            mRawPressure = rawPressure;
+            mRawHumidity = rawHumidity;
+            mTemperature = temperature;
+            mPressure = pressure;
+            mHumidity = humidity;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= BULK_PARALLEL_THRESHOLD) {
+                compensateRange(mCalibration, mCompensation, mRawTemp, mRawPressure,
+                        mRawHumidity, mTemperature, mPressure, mHumidity, mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new BulkCompensation(mCalibration, mCompensation, mRawTemp, mRawPressure,
+                            mRawHumidity, mTemperature, mPressure, mHumidity, mFrom, middle),
+                    new BulkCompensation(mCalibration, mCompensation, mRawTemp, mRawPressure,
+                            mRawHumidity, mTemperature, mPressure, mHumidity, middle, mTo));
+        }
+    }
+
+    private static void compensateRange(Calibration calibration, int compensation,
+                                        int[] rawTemp, int[] rawPressure, int[] rawHumidity,
+                                        float[] temperature, float[] pressure, float[] humidity,
+                                        int from, int to) {
+        int[] t = calibration.temperature;
+        int[] p = calibration.pressure;
+        int[] h = calibration.humidity;
+        if (compensation == COMPENSATION_FIXED) {
+            for (int i = from; i < to; i++) {
+                int fineTemp = compensateFineTemperatureFixed(rawTemp[i], t);
+                temperature[i] = ((fineTemp * 5 + 128) >> 8) / 100.0f;
+                if (rawPressure != null) {
+                    pressure[i] = (rawPressure[i] == BME280_SAMPLE_SKIPPED) ? Float.NaN
+                            : compensatePressureFixed(rawPressure[i], fineTemp, p) / 25600.0f;
+                }
+                if (rawHumidity != null) {
+                    humidity[i] = (rawHumidity[i] == BME280_SAMPLE_SKIPPED) ? Float.NaN
+                            : compensateHumidityFixed(rawHumidity[i], fineTemp, h) / 1024.0f;
+                }
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                float fineTemp = compensateFineTemperature(rawTemp[i], t);
+                temperature[i] = fineTemp / 5120.0f;
+                if (rawPressure != null) {
+                    pressure[i] = (rawPressure[i] == BME280_SAMPLE_SKIPPED) ? Float.NaN
+                            : compensatePressure(rawPressure[i], fineTemp, p);
+                }
+                if (rawHumidity != null) {
+                    humidity[i] = (rawHumidity[i] == BME280_SAMPLE_SKIPPED) ? Float.NaN
+                            : compensateHumidity(rawHumidity[i], fineTemp, h);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the raw measurement data block (8 bytes, 6 bytes on a BMP280) into the given buffer
+     * in one transaction, without compensation.
+     * @return the number of bytes read.
      * @throws IOException
      */
-    private int readSample16bit(int address) throws IOException, IllegalStateException {
-        if (mDevice == null) {
-            throw new IllegalStateException("I2C device is already closed");
+    /*package*/ int readRawData(byte[] buffer) throws IOException, IllegalStateException {
+        synchronized (mDataBuffer) {
+            readDataBlock(BME280_REG_PRESS, mDataLength);
+            System.arraycopy(mDataBuffer, 0, buffer, 0, mDataLength);
+            return mDataLength;
         }
-        synchronized (mBuffer2) {
-            mDevice.readRegBuffer(address, mBuffer2, 2);
-            // msb[7:0] lsb[7:0]
-            int msb = mBuffer2[0] & 0xff;
-            int lsb = mBuffer2[1] & 0xff;
-            // Convert to 16bit integer
-            return (msb << 8 | lsb);
+    }
+
+    /**
+     * Reads length bytes of the measurement data block into mDataBuffer in one transaction.
+     * Callers must hold the mDataBuffer lock.
+     * @throws IOException
+     */
+    private void readDataBlock(int address, int length) throws IOException, IllegalStateException {
+        if (mBus == null) {
+            throw new IllegalStateException("device is already closed");
         }
+        mBus.readRegBuffer(address, mDataBuffer, length);
+    }
+
+    /**
+     * Decodes a 20 bit sample from msb[7:0] lsb[7:0] xlsb[7:4] at the given offset.
+     */
+    /*package*/ static int decodeSample(byte[] buffer, int offset) {
+        int msb = buffer[offset] & 0xff;
+        int lsb = buffer[offset + 1] & 0xff;
+        int xlsb = buffer[offset + 2] & 0xf0;
+        return (msb << 16 | lsb << 8 | xlsb) >> 4;
+    }
+
+    /**
+     * Decodes a 16 bit sample from msb[7:0] lsb[7:0] at the given offset.
+     */
+    /*package*/ static int decodeSample16bit(byte[] buffer, int offset) {
+        int msb = buffer[offset] & 0xff;
+        int lsb = buffer[offset + 1] & 0xff;
+        return (msb << 8 | lsb);
     }
 
     // Compensation formula from the BME280 datasheet.
@@ -444,6 +1525,11 @@ public class BME280 implements AutoCloseable {
 
     @VisibleForTesting
     static float[] compensateTemperature(int rawTemp, int[] calibrationData) {
+        float fineTemp = compensateFineTemperature(rawTemp, calibrationData);
+        return new float[]{fineTemp / 5120.0f, fineTemp};
+    }
+
+    private static float compensateFineTemperature(int rawTemp, int[] calibrationData) {
         int dig_T1 = calibrationData[0];
         int dig_T2 = calibrationData[1];
         int dig_T3 = calibrationData[2];
@@ -452,8 +1538,7 @@ public class BME280 implements AutoCloseable {
         float var1 = (adc_T / 16384f - ((float) dig_T1) / 1024f) * ((float) dig_T2);
         float var2 = ((adc_T / 131072f - ((float) dig_T1) / 8192f) * (adc_T / 131072f
                 - ((float) dig_T1) / 8192f)) * ((float) dig_T3);
-        float fineTemp = var1 + var2;
-        return new float[]{fineTemp / 5120.0f, fineTemp};
+        return var1 + var2;
     }
 
     // Compensation formula from the BME280 datasheet.
@@ -521,4 +1606,215 @@ public class BME280 implements AutoCloseable {
         return (float)var_h;
     }
 
-}
\ No newline at end of file
+    // Fixed-point compensation formulas from the BME280 datasheet (section 4.2.3) and the
+    // BME280 API. Results match the Bosch int32/int64 reference bit for bit.
+    // https://github.com/BoschSensortec/BME280_driver
+
+    /**
+     * Compensates raw values with the fixed-point formulas and fills the fixed-point and float
+     * fields of the given holder. Does not allocate.
+     * @param rawPressure raw pressure, or -1 if pressure was skipped.
+     * @param rawHumidity raw humidity, or -1 if humidity was skipped.
+     */
+    static void compensateFixed(int rawTemp, int rawPressure, int rawHumidity,
+                                int[] tempCalibration, int[] pressureCalibration,
+                                int[] humidityCalibration, Sample out) {
+        int fineTemp = compensateFineTemperatureFixed(rawTemp, tempCalibration);
+        out.fineTemperature = fineTemp;
+        out.temperatureFixed = (fineTemp * 5 + 128) >> 8;
+        out.temperature = out.temperatureFixed / 100.0f;
+        if (rawPressure == BME280_SAMPLE_SKIPPED) {
+            out.pressureFixed = 0;
+            out.pressure = Float.NaN;
+        } else {
+            out.pressureFixed = compensatePressureFixed(rawPressure, fineTemp, pressureCalibration);
+            // Q24.8 Pa to hPa
+            out.pressure = out.pressureFixed / 25600.0f;
+        }
+        if (rawHumidity == BME280_SAMPLE_SKIPPED) {
+            out.humidityFixed = 0;
+            out.humidity = Float.NaN;
+        } else {
+            out.humidityFixed = compensateHumidityFixed(rawHumidity, fineTemp, humidityCalibration);
+            out.humidity = out.humidityFixed / 1024.0f;
+        }
+    }
+
+    /**
+     * Returns the fine temperature t_fine. Temperature in 0.01 DegC is (t_fine * 5 + 128) >> 8.
+     */
+    @VisibleForTesting
+    static int compensateFineTemperatureFixed(int rawTemp, int[] calibrationData) {
+        int dig_T1 = calibrationData[0];
+        int dig_T2 = calibrationData[1];
+        int dig_T3 = calibrationData[2];
+
+        int var1 = (((rawTemp >> 3) - (dig_T1 << 1)) * dig_T2) >> 11;
+        int var2 = (((((rawTemp >> 4) - dig_T1) * ((rawTemp >> 4) - dig_T1)) >> 12) * dig_T3) >> 14;
+        return var1 + var2;
+    }
+
+    /**
+     * Returns pressure in Pa as unsigned 32 bit integer in Q24.8 format (24 integer bits and 8
+     * fractional bits).
+     */
+    @VisibleForTesting
+    static long compensatePressureFixed(int rawPressure, int fineTemperature, int[] calibration) {
+        long dig_P1 = calibration[0];
+        long dig_P2 = calibration[1];
+        long dig_P3 = calibration[2];
+        long dig_P4 = calibration[3];
+        long dig_P5 = calibration[4];
+        long dig_P6 = calibration[5];
+        long dig_P7 = calibration[6];
+        long dig_P8 = calibration[7];
+        long dig_P9 = calibration[8];
+
+        long var1 = ((long) fineTemperature) - 128000;
+        long var2 = var1 * var1 * dig_P6;
+        var2 = var2 + ((var1 * dig_P5) << 17);
+        var2 = var2 + (dig_P4 << 35);
+        var1 = ((var1 * var1 * dig_P3) >> 8) + ((var1 * dig_P2) << 12);
+        var1 = (((1L << 47) + var1) * dig_P1) >> 33;
+        if (var1 == 0) {
+            return 0; // avoid exception caused by division by zero
+        }
+        long p = 1048576 - rawPressure;
+        p = (((p << 31) - var2) * 3125) / var1;
+        var1 = (dig_P9 * (p >> 13) * (p >> 13)) >> 25;
+        var2 = (dig_P8 * p) >> 19;
+        p = ((p + var1 + var2) >> 8) + (dig_P7 << 4);
+        return p & 0xffffffffL;
+    }
+
+    /**
+     * Returns humidity in %RH as unsigned 32 bit integer in Q22.10 format (22 integer and 10
+     * fractional bits).
+     */
+    @VisibleForTesting
+    static int compensateHumidityFixed(int rawHumidity, int fineTemperature, int[] calibration) {
+        int dig_H1 = calibration[0];
+        int dig_H2 = calibration[1];
+        int dig_H3 = calibration[2];
+        int dig_H4 = calibration[3];
+        int dig_H5 = calibration[4];
+        int dig_H6 = calibration[5];
+
+        int v_x1 = fineTemperature - 76800;
+        v_x1 = ((((rawHumidity << 14) - (dig_H4 << 20) - (dig_H5 * v_x1)) + 16384) >> 15)
+                * (((((((v_x1 * dig_H6) >> 10) * (((v_x1 * dig_H3) >> 11) + 32768)) >> 10)
+                + 2097152) * dig_H2 + 8192) >> 14);
+        v_x1 = v_x1 - (((((v_x1 >> 15) * (v_x1 >> 15)) >> 7) * dig_H1) >> 4);
+        v_x1 = (v_x1 < 0) ? 0 : v_x1;
+        v_x1 = (v_x1 > 419430400) ? 419430400 : v_x1;
+        return v_x1 >> 12;
+    }
+
+    /**
+     * Register access on the bus the sensor is connected with.
+     */
+    private interface Bus {
+        byte readRegByte(int reg) throws IOException;
+        void readRegBuffer(int reg, byte[] buffer, int length) throws IOException;
+        /** Writes register address and data pairs in one transaction. */
+        void write(byte[] pairs, int length) throws IOException;
+        void close() throws IOException;
+    }
+
+    private static class I2cBus implements Bus {
+        private final I2cDevice mDevice;
+
+        I2cBus(I2cDevice device) {
+            mDevice = device;
+        }
+
+        @Override
+        public byte readRegByte(int reg) throws IOException {
+            return mDevice.readRegByte(reg);
+        }
+
+        @Override
+        public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            mDevice.readRegBuffer(reg, buffer, length);
+        }
+
+        @Override
+        public void write(byte[] pairs, int length) throws IOException {
+            // I2C multiple byte write is a sequence of register address and data pairs
+            mDevice.write(pairs, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDevice.close();
+        }
+    }
+
+    /**
+     * SPI register access. The register address is sent as the first byte with bit 7 set for a
+     * read and cleared for a write. Reads auto-increment the address; writes are sent as
+     * register address and data pairs within one chip select, like on I2C.
+     */
+    private static class SpiBus implements Bus {
+        private static final int SPI_READ = 0x80;
+        private static final int SPI_WRITE_MASK = 0x7F;
+        // Largest transfer is the first calibration block plus the address byte
+        private static final int SPI_BUFFER_LENGTH = BME280_CALIB_BLOCK_1_LENGTH + 1;
+
+        private final SpiDevice mDevice;
+        private final byte[] mTxBuffer = new byte[SPI_BUFFER_LENGTH];
+        private final byte[] mRxBuffer = new byte[SPI_BUFFER_LENGTH];
+
+        SpiBus(SpiDevice device) {
+            mDevice = device;
+        }
+
+        void configure() throws IOException {
+            mDevice.setMode(SpiDevice.MODE0);
+            mDevice.setFrequency(SPI_MAX_FREQUENCY_HZ);
+            mDevice.setBitsPerWord(8);
+            mDevice.setBitJustification(false);     // MSB first
+        }
+
+        @Override
+        public byte readRegByte(int reg) throws IOException {
+            synchronized (mTxBuffer) {
+                transferRead(reg, 1);
+                return mRxBuffer[1];
+            }
+        }
+
+        @Override
+        public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            synchronized (mTxBuffer) {
+                transferRead(reg, length);
+                System.arraycopy(mRxBuffer, 1, buffer, 0, length);
+            }
+        }
+
+        private void transferRead(int reg, int length) throws IOException {
+            mTxBuffer[0] = (byte) (reg | SPI_READ);
+            for (int i = 1; i <= length; i++) {
+                mTxBuffer[i] = 0;
+            }
+            mDevice.transfer(mTxBuffer, mRxBuffer, length + 1);
+        }
+
+        @Override
+        public void write(byte[] pairs, int length) throws IOException {
+            synchronized (mTxBuffer) {
+                for (int i = 0; i < length; i += 2) {
+                    mTxBuffer[i] = (byte) (pairs[i] & SPI_WRITE_MASK);
+                    mTxBuffer[i + 1] = pairs[i + 1];
+                }
+                mDevice.write(mTxBuffer, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDevice.close();
+        }
+    }
+
+}
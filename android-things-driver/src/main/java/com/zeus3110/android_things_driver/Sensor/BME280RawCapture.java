@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 zeus3110
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zeus3110.android_things_driver.Sensor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * High rate raw frame capture for the BME280. The capture thread only copies the raw data
+ * block and a timestamp into a preallocated ring; compensation runs when a consumer asks for a
+ * value and the result is cached per frame.
+ *
+ * Frames are numbered from 0. A frame stays readable until it is overwritten, capacity frames
+ * later. Configure the sensor (normal mode, oversampling and standby time) before starting.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class BME280RawCapture implements AutoCloseable {
+
+    private static final String TAG = BME280RawCapture.class.getSimpleName();
+
+    // Frame layout in the ring: timestamp (8 bytes) followed by the raw data block (8 bytes)
+    private static final int FRAME_TIMESTAMP = 0;
+    private static final int FRAME_DATA = 8;
+    private static final int FRAME_SIZE = FRAME_DATA + BME280.BME280_DATA_LENGTH;
+
+    private final BME280 mSensor;
+    private final int mCapacity;
+    private final ByteBuffer mRing;         // guarded by mRing
+    private final long[] mSlotFrame;        // frame number held by each slot, guarded by mRing
+    private long mNextFrame;                // guarded by mRing
+    private int mGeneration;                // incremented on every clear, guarded by mRing
+
+    // Compensated value cache, guarded by mRing
+    private final long[] mCachedFrame;
+    private final float[] mCachedTemperature;
+    private final float[] mCachedPressure;
+    private final float[] mCachedHumidity;
+    private final int[] mCachedFineTemperature;
+    private final int[] mCachedTemperatureFixed;
+    private final long[] mCachedPressureFixed;
+    private final int[] mCachedHumidityFixed;
+
+    // Compensation inputs, fixed when the capture starts, guarded by mRing
+    private int mCompensation;
+    private int[] mTempCalibration;
+    private int[] mPressureCalibration;
+    private int[] mHumidityCalibration;
+    private boolean mPressureEnabled;
+    private boolean mHumidityEnabled;
+
+    private CaptureThread mThread;
+
+    /**
+     * Create a capture ring for the given sensor.
+     * @param sensor sensor to capture from.
+     * @param capacity number of frames kept in the ring.
+     */
+    public BME280RawCapture(BME280 sensor, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mSensor = sensor;
+        mCapacity = capacity;
+        mRing = ByteBuffer.allocate(capacity * FRAME_SIZE);
+        mSlotFrame = new long[capacity];
+        mCachedFrame = new long[capacity];
+        mCachedTemperature = new float[capacity];
+        mCachedPressure = new float[capacity];
+        mCachedHumidity = new float[capacity];
+        mCachedFineTemperature = new int[capacity];
+        mCachedTemperatureFixed = new int[capacity];
+        mCachedPressureFixed = new long[capacity];
+        mCachedHumidityFixed = new int[capacity];
+        clear();
+    }
+
+    /**
+     * Start capturing at the given rate. The compensation mode, calibration and enabled
+     * measurements of the sensor are taken at this point.
+     * @param frequencyHz capture rate, at most {@link BME280#MAX_FREQ_HZ}.
+     */
+    public synchronized void start(float frequencyHz) throws IllegalStateException {
+        if (frequencyHz <= 0 || frequencyHz > BME280.MAX_FREQ_HZ) {
+            throw new IllegalArgumentException("frequency out of range: " + frequencyHz);
+        }
+        if (mSensor.getTemperatureOversampling() == BME280.OVERSAMPLING_SKIPPED) {
+            throw new IllegalStateException("temperature oversampling is skipped");
+        }
+        if (mThread != null) {
+            if (mThread.isAlive()) {
+                throw new IllegalStateException("capture is already running");
+            }
+            // The thread stopped on its own after a read error
+            mThread = null;
+        }
+        BME280.Calibration calibration = mSensor.getCalibration();
+        synchronized (mRing) {
+            mCompensation = mSensor.getCompensation();
+            mTempCalibration = calibration.temperature;
+            mPressureCalibration = calibration.pressure;
+            mHumidityCalibration = calibration.humidity;
+            mPressureEnabled = mSensor.getPressureOversampling() != BME280.OVERSAMPLING_SKIPPED;
+            mHumidityEnabled = mSensor.getHumidityOversampling() != BME280.OVERSAMPLING_SKIPPED;
+            clear();
+        }
+
+        mThread = new CaptureThread((long) (1000000000L / frequencyHz));
+        mThread.start();
+    }
+
+    /**
+     * Stop capturing and wait for the capture thread to finish. Captured frames stay readable.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mThread.quit();
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop capturing. The sensor itself is not closed.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Returns the number of the next frame to be captured, which is also the number of frames
+     * captured since start.
+     */
+    public long getFrameCount() {
+        synchronized (mRing) {
+            return mNextFrame;
+        }
+    }
+
+    /**
+     * Returns the number of the oldest frame still in the ring.
+     */
+    public long getOldestFrame() {
+        synchronized (mRing) {
+            return Math.max(0, mNextFrame - mCapacity);
+        }
+    }
+
+    /**
+     * Returns the capture time of a frame in {@link System#nanoTime()} units.
+     * @throws IndexOutOfBoundsException if the frame is not in the ring.
+     */
+    public long getTimestamp(long frame) {
+        synchronized (mRing) {
+            int slot = checkFrame(frame);
+            return mRing.getLong(slot * FRAME_SIZE + FRAME_TIMESTAMP);
+        }
+    }
+
+    /**
+     * Copy the raw data block of a frame (press_msb to hum_lsb) into the given buffer.
+     * @throws IndexOutOfBoundsException if the frame is not in the ring.
+     */
+    public void getRawFrame(long frame, byte[] buffer) {
+        synchronized (mRing) {
+            int slot = checkFrame(frame);
+            for (int i = 0; i < BME280.BME280_DATA_LENGTH; i++) {
+                buffer[i] = mRing.get(slot * FRAME_SIZE + FRAME_DATA + i);
+            }
+        }
+    }
+
+    /**
+     * Compensate a frame into a caller-supplied holder. The result is cached, so later reads of
+     * the same frame do no math.
+     * @throws IndexOutOfBoundsException if the frame is not in the ring.
+     */
+    public void getSample(long frame, BME280.Sample sample) {
+        int rawTemp, rawPressure, rawHumidity;
+        int slot, generation, compensation;
+        int[] tempCalibration, pressureCalibration, humidityCalibration;
+        synchronized (mRing) {
+            slot = checkFrame(frame);
+            if (mCachedFrame[slot] == frame) {
+                sample.temperature = mCachedTemperature[slot];
+                sample.pressure = mCachedPressure[slot];
+                sample.humidity = mCachedHumidity[slot];
+                sample.fineTemperature = mCachedFineTemperature[slot];
+                sample.temperatureFixed = mCachedTemperatureFixed[slot];
+                sample.pressureFixed = mCachedPressureFixed[slot];
+                sample.humidityFixed = mCachedHumidityFixed[slot];
+                return;
+            }
+            int base = slot * FRAME_SIZE + FRAME_DATA;
+            rawPressure = mPressureEnabled
+                    ? decode20bit(base + BME280.BME280_DATA_OFFSET_PRESS)
+                    : BME280.BME280_SAMPLE_SKIPPED;
+            rawTemp = decode20bit(base + BME280.BME280_DATA_OFFSET_TEMP);
+            int offset = base + BME280.BME280_DATA_OFFSET_HUMID;
+            rawHumidity = mHumidityEnabled
+                    ? ((mRing.get(offset) & 0xff) << 8) | (mRing.get(offset + 1) & 0xff)
+                    : BME280.BME280_SAMPLE_SKIPPED;
+            generation = mGeneration;
+            compensation = mCompensation;
+            tempCalibration = mTempCalibration;
+            pressureCalibration = mPressureCalibration;
+            humidityCalibration = mHumidityCalibration;
+        }
+        BME280.compensate(compensation, tempCalibration, pressureCalibration,
+                humidityCalibration, rawTemp, rawPressure, rawHumidity, sample);
+        synchronized (mRing) {
+            // Only cache if the frame was not overwritten or the capture restarted while
+            // compensating
+            if (mGeneration == generation && mSlotFrame[slot] == frame) {
+                mCachedFrame[slot] = frame;
+                mCachedTemperature[slot] = sample.temperature;
+                mCachedPressure[slot] = sample.pressure;
+                mCachedHumidity[slot] = sample.humidity;
+                mCachedFineTemperature[slot] = sample.fineTemperature;
+                mCachedTemperatureFixed[slot] = sample.temperatureFixed;
+                mCachedPressureFixed[slot] = sample.pressureFixed;
+                mCachedHumidityFixed[slot] = sample.humidityFixed;
+            }
+        }
+    }
+
+    private int decode20bit(int offset) {
+        int msb = mRing.get(offset) & 0xff;
+        int lsb = mRing.get(offset + 1) & 0xff;
+        int xlsb = mRing.get(offset + 2) & 0xf0;
+        return (msb << 16 | lsb << 8 | xlsb) >> 4;
+    }
+
+    /**
+     * Returns the slot of the frame. Callers must hold the mRing lock.
+     */
+    private int checkFrame(long frame) {
+        int slot = (int) (frame % mCapacity);
+        if (frame < 0 || mSlotFrame[slot] != frame) {
+            throw new IndexOutOfBoundsException("frame " + frame + " is not in the ring");
+        }
+        return slot;
+    }
+
+    private void clear() {
+        synchronized (mRing) {
+            for (int i = 0; i < mCapacity; i++) {
+                mSlotFrame[i] = -1;
+                mCachedFrame[i] = -1;
+            }
+            mNextFrame = 0;
+            mGeneration++;
+        }
+    }
+
+    private class CaptureThread extends Thread {
+
+        private final long mPeriodNanos;
+        private final byte[] mFrame = new byte[BME280.BME280_DATA_LENGTH];
+        private volatile boolean mRunning = true;
+
+        CaptureThread(long periodNanos) {
+            super(TAG);
+            mPeriodNanos = periodNanos;
+        }
+
+        @Override
+        public void run() {
+            long deadline = System.nanoTime();
+            while (mRunning) {
+                try {
+                    mSensor.readRawData(mFrame);
+                    long timestamp = System.nanoTime();
+                    synchronized (mRing) {
+                        int slot = (int) (mNextFrame % mCapacity);
+                        int base = slot * FRAME_SIZE;
+                        mRing.putLong(base + FRAME_TIMESTAMP, timestamp);
+                        for (int i = 0; i < mFrame.length; i++) {
+                            mRing.put(base + FRAME_DATA + i, mFrame[i]);
+                        }
+                        mSlotFrame[slot] = mNextFrame;
+                        mNextFrame++;
+                    }
+
+                    // Fixed rate against absolute deadlines so the period does not drift
+                    deadline += mPeriodNanos;
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        deadline = System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException|IllegalStateException e) {
+                    Log.e(TAG, "Raw capture stopped", e);
+                    break;
+                }
+            }
+        }
+
+        public void quit() {
+            mRunning = false;
+            interrupt();
+        }
+    }
+}
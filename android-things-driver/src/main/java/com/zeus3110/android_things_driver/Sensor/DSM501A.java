@@ -16,41 +16,136 @@
 
 package com.zeus3110.android_things_driver.Sensor;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
 import android.util.Log;
 
 import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.PeripheralManagerService;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import static android.content.ContentValues.TAG;
 import static java.lang.Math.pow;
 
 public class DSM501A implements AutoCloseable {
     private static final String TAG = DSM501A.class.getSimpleName();
 
-    private Gpio mGpio;
+    /**
+     * Output channel of the module.
+     */
+    @IntDef({CHANNEL_PM1, CHANNEL_PM25})
+    public @interface Channel {}
+    public static final int CHANNEL_PM1 = 0;        // Vout1, particles over 1um
+    public static final int CHANNEL_PM25 = 1;       // Vout2, particles over 2.5um
+    private static final int CHANNEL_COUNT = 2;
+
+    private final Gpio[] mGpio = new Gpio[CHANNEL_COUNT];
 
     private final long MES_CYCLE = 30000;
+    // Occupancy is also refreshed at this interval so it keeps sliding without edges
+    private static final long UPDATE_INTERVAL_MS = 1000;
+
+    /**
+     * One published occupancy measurement. Immutable, so all values belong to the same update.
+     */
+    public static final class Snapshot {
+        /** Increases with every update of the channel, 0 before the first update. */
+        public final long sequence;
+        /** Time of the update in {@link SystemClock#elapsedRealtimeNanos()} units. */
+        public final long timestamp;
+        /** Window length covered, shorter than the window until it has filled up. */
+        public final long windowNanos;
+        /** Time the output was active (low) within the window. */
+        public final long occupiedNanos;
 
-    private long calcCycleTime_ms = MES_CYCLE;
-    private long calcOnIntegTime_ms = 10 ;
+        Snapshot(long sequence, long timestamp, long windowNanos, long occupiedNanos) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.windowNanos = windowNanos;
+            this.occupiedNanos = occupiedNanos;
+        }
+
+        public long getPulseWidth() {
+            return occupiedNanos / 1000000L;
+        }
 
-    private PulseMesThread mThread;
+        public float getDustDensity() {
+            float ratio,concentration;
+            if (windowNanos <= 0) {
+                return 0.0f;
+            }
+            ratio = (float)(occupiedNanos*100.0/windowNanos);
+            concentration=(float)(1.1*pow(ratio,3)-3.8*pow(ratio,2)+520*ratio+0.62);
+            concentration=(concentration>0.0f)?concentration:0.0f;
+            return concentration;
+        }
+    }
+
+    // Latest measurement per channel, replaced as a whole by the capture thread
+    private final AtomicReferenceArray<Snapshot> mSnapshot
+            = new AtomicReferenceArray<>(CHANNEL_COUNT);
+
+    private volatile long mWindowNanos = MES_CYCLE * 1000000L;
+
+    // Edge callbacks of all channels and the update timer run on this thread
+    private HandlerThread mCaptureThread;
+    private Handler mCaptureHandler;
+
+    // Capture state, only touched on the capture thread
+    private final OccupancyWindow[] mWindow = new OccupancyWindow[CHANNEL_COUNT];
 
     /**
-     * Create a new MH-Z19 sensor driver connected on the given port.
-     * @param pin GPIO pin name the sensor is connected to.
+     * Create a new DSM501A sensor driver connected on the given port.
+     * @param pin GPIO pin name the sensor Vout1 output is connected to.
      * @throws IOException
      */
     public DSM501A(String pin) throws IOException {
+        this(pin, null);
+    }
+
+    /**
+     * Create a new DSM501A sensor driver capturing both outputs. Both channels share one
+     * capture thread.
+     * @param pinPm1 GPIO pin name of the Vout1 output (over 1um).
+     * @param pinPm25 GPIO pin name of the Vout2 output (over 2.5um), or null if not connected.
+     * @throws IOException
+     */
+    public DSM501A(String pinPm1, String pinPm25) throws IOException {
         PeripheralManagerService pioService = new PeripheralManagerService();
-        mGpio = pioService.openGpio(pin);
 
         try {
-            mGpio.setDirection(Gpio.DIRECTION_IN);
-            mGpio.setEdgeTriggerType(Gpio.EDGE_BOTH);
+            mGpio[CHANNEL_PM1] = pioService.openGpio(pinPm1);
+            if (pinPm25 != null) {
+                mGpio[CHANNEL_PM25] = pioService.openGpio(pinPm25);
+            }
 
+            // Initial state is set before the capture thread starts, which publishes it
+            long now = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                if (mGpio[i] != null) {
+                    mGpio[i].setDirection(Gpio.DIRECTION_IN);
+                    // The outputs pull low while particles are detected
+                    mGpio[i].setActiveType(Gpio.ACTIVE_LOW);
+                    mGpio[i].setEdgeTriggerType(Gpio.EDGE_BOTH);
+                    mWindow[i] = new OccupancyWindow();
+                    mWindow[i].reset(now, mGpio[i].getValue());
+                    mSnapshot.set(i, new Snapshot(0, now, 0, 0));
+                }
+            }
+
+            mCaptureThread = new HandlerThread(TAG);
+            mCaptureThread.start();
+            mCaptureHandler = new Handler(mCaptureThread.getLooper());
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                if (mGpio[i] != null) {
+                    mGpio[i].registerGpioCallback(mEdgeCallback, mCaptureHandler);
+                }
+            }
+            mCaptureHandler.postDelayed(mUpdate, UPDATE_INTERVAL_MS);
         } catch (IOException|RuntimeException e) {
             try {
                 close();
@@ -58,89 +153,259 @@ public class DSM501A implements AutoCloseable {
             }
             throw e;
         }
+        Log.i(TAG,"Start pulse capture");
+    }
 
-        mThread = new PulseMesThread();
-        mThread.start();
-        Log.i(TAG,"Start port read thread");
+    /**
+     * Set the length of the sliding occupancy window. Shorter windows react faster to dust
+     * spikes, longer windows are less noisy.
+     * @param windowMs window length in milliseconds, 30000 by default.
+     */
+    public void SetWindow(long windowMs) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + windowMs);
+        }
+        mWindowNanos = windowMs * 1000000L;
+    }
+
+    public boolean HasChannel(@Channel int channel) {
+        return mWindow[channel] != null;
     }
 
     public long GetPulseWidth() {
-        return calcOnIntegTime_ms;
+        return GetPulseWidth(CHANNEL_PM1);
     }
 
-    public float GetDustDensity() {
-        float ratio,concentration;
-        ratio = (float)(calcOnIntegTime_ms*100.0f/calcCycleTime_ms);
-        concentration=(float)(1.1*pow(ratio,3)-3.8*pow(ratio,2)+520*ratio+0.62);
-        concentration=(concentration>0.0f)?concentration:0.0f;
-        return concentration;
+    public long GetPulseWidth(@Channel int channel) {
+        return GetSnapshot(channel).getPulseWidth();
     }
 
-    public class PulseMesThread extends Thread {
+    public float GetDustDensity() {
+        return GetDustDensity(CHANNEL_PM1);
+    }
 
-        public long pulseStartTime_ms, cycleStartTime_ms, cycleTime_ms, currentTime_ms, integOnTime;
-        boolean previosSignal, currentSignal;
-        private boolean mRunning = true;
+    public float GetDustDensity(@Channel int channel) {
+        return GetSnapshot(channel).getDustDensity();
+    }
 
+    /**
+     * Returns the latest measurement of a channel. Lock-free; compare the sequence number with
+     * an earlier snapshot to tell whether the value is new.
+     * @param channel channel to read.
+     */
+    public Snapshot GetSnapshot(@Channel int channel) {
+        Snapshot snapshot = mSnapshot.get(channel);
+        if (snapshot == null) {
+            throw new IllegalStateException("channel " + channel + " is not connected");
+        }
+        return snapshot;
+    }
 
-        public void run() {
-            integOnTime = 0;
-            cycleTime_ms = MES_CYCLE;
-            previosSignal = false;
+    /**
+     * Returns the concentration of particles between 1um and 2.5um, the difference of the two
+     * channels. Both outputs must be connected.
+     */
+    public float GetDifferentialDustDensity() {
+        if (mWindow[CHANNEL_PM25] == null) {
+            throw new IllegalStateException("Vout2 is not connected");
+        }
+        float diff = GetDustDensity(CHANNEL_PM1) - GetDustDensity(CHANNEL_PM25);
+        return (diff > 0.0f) ? diff : 0.0f;
+    }
 
+    // Shared dispatcher for all channels: timestamps each level change, no CPU is used
+    // between edges
+    private final GpioCallback mEdgeCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            int channel = (gpio == mGpio[CHANNEL_PM25]) ? CHANNEL_PM25 : CHANNEL_PM1;
+            boolean signal;
             try {
-                cycleStartTime_ms = System.currentTimeMillis();
-                while (mRunning) {
-                    currentTime_ms = System.currentTimeMillis();
-                    currentSignal = mGpio.getValue();
-                    if (previosSignal) {
-                        if(!currentSignal) {
-                            integOnTime = integOnTime + (currentTime_ms - pulseStartTime_ms);
-                            previosSignal = false;
-                        }
-                    } else {
-                        if(currentSignal) {
-                            pulseStartTime_ms = currentTime_ms;
-                            previosSignal = true;
-                        }
-                    }
-
-                    cycleTime_ms = currentTime_ms - cycleStartTime_ms;
-                    if(cycleTime_ms >= MES_CYCLE ) {
-                        Log.i(TAG, "Cycle end: " + String.valueOf(cycleTime_ms) + " ms");
-                        // keep value
-                        calcCycleTime_ms = cycleTime_ms;
-                        calcOnIntegTime_ms = integOnTime;
-                        // reset value
-                        integOnTime = 0;
-                        cycleStartTime_ms = currentTime_ms;
-                        previosSignal = false;
-                    }
+                signal = gpio.getValue();
+            } catch (IOException e) {
+                Log.e(TAG, "Pulse capture read failed", e);
+                return true;
+            }
+            if (mWindow[channel].onEdge(now, signal)) {
+                publish(channel, now);
+            }
+            return true;
+        }
+
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            Log.w(TAG, gpio + ": Error event " + error);
+        }
+    };
 
+    // Keeps the window sliding when no edge arrives
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                if (mWindow[i] != null) {
+                    publish(i, now);
                 }
+            }
+            mCaptureHandler.postDelayed(this, UPDATE_INTERVAL_MS);
+        }
+    };
 
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void publish(int channel, long now) {
+        OccupancyWindow window = mWindow[channel];
+        window.update(now, mWindowNanos);
+        // Only the capture thread replaces snapshots, so the sequence can be read back
+        long sequence = mSnapshot.get(channel).sequence + 1;
+        mSnapshot.set(channel, new Snapshot(sequence, now, window.spanNanos,
+                window.occupiedNanos));
+    }
+
+    /**
+     * Sliding window occupancy of the active level. Completed pulses are kept in a primitive
+     * ring of start and end timestamps with a running sum of their lengths, so an update only
+     * touches the pulses that left the window. Only used on the capture thread.
+     */
+    static final class OccupancyWindow {
+        private static final int INITIAL_CAPACITY = 256;
+
+        private long[] mStart = new long[INITIAL_CAPACITY];
+        private long[] mEnd = new long[INITIAL_CAPACITY];
+        private int mHead;                  // oldest pulse
+        private int mCount;
+        private long mSum;                  // total length of the pulses in the ring
+        private boolean mSignal;
+        private long mPulseStart;
+        private long mDataStart;            // oldest time the ring still covers
+        private long mWindow;               // window of the last update, 0 before the first
+        private long mLastUpdate;
+
+        // Results of the last update
+        long occupiedNanos;
+        long spanNanos;
+
+        void reset(long now, boolean signal) {
+            mHead = 0;
+            mCount = 0;
+            mSum = 0;
+            mSignal = signal;
+            mPulseStart = now;
+            mDataStart = now;
+            mWindow = 0;
+            mLastUpdate = now;
+            occupiedNanos = 0;
+            spanNanos = 0;
+        }
+
+        /**
+         * Returns false if the level did not change (glitch shorter than the callback latency).
+         */
+        boolean onEdge(long now, boolean signal) {
+            if (signal == mSignal) {
+                return false;
+            }
+            if (signal) {
+                mPulseStart = now;
+            } else {
+                push(mPulseStart, now);
             }
+            mSignal = signal;
+            return true;
         }
 
-        public void quit() {
-            mRunning = false;
+        void update(long now, long window) {
+            if (mWindow != 0 && window > mWindow) {
+                // The window grew: pulses older than the previous window were already dropped,
+                // so the span has to grow back from there instead of jumping to the new length
+                mDataStart = Math.max(mDataStart, mLastUpdate - mWindow);
+            }
+            mWindow = window;
+            mLastUpdate = now;
+
+            long windowStart = Math.max(now - window, mDataStart);
+            while (mCount > 0 && mEnd[mHead] <= windowStart) {
+                mSum -= mEnd[mHead] - mStart[mHead];
+                mHead = (mHead + 1) % mStart.length;
+                mCount--;
+            }
+
+            long occupied = mSum;
+            if (mCount > 0 && mStart[mHead] < windowStart) {
+                // Oldest pulse is only partly inside the window
+                occupied -= windowStart - mStart[mHead];
+            }
+            if (mSignal) {
+                occupied += now - Math.max(mPulseStart, windowStart);
+            }
+            occupiedNanos = occupied;
+            spanNanos = now - windowStart;
         }
-    };
+
+        private void push(long start, long end) {
+            if (mCount == mStart.length) {
+                // More pulses in the window than ever before, grow once
+                long[] newStart = new long[mStart.length * 2];
+                long[] newEnd = new long[mEnd.length * 2];
+                for (int i = 0; i < mCount; i++) {
+                    newStart[i] = mStart[(mHead + i) % mStart.length];
+                    newEnd[i] = mEnd[(mHead + i) % mEnd.length];
+                }
+                mStart = newStart;
+                mEnd = newEnd;
+                mHead = 0;
+            }
+            int tail = (mHead + mCount) % mStart.length;
+            mStart[tail] = start;
+            mEnd[tail] = end;
+            mSum += end - start;
+            mCount++;
+        }
+    }
 
     /**
      * Close the driver and the underlying device.
      */
     @Override
     public void close() throws IOException {
-        mThread.quit();
-        if (mGpio!=null) {
-            try {
-                mGpio.close();
-            } finally {
-                mGpio = null;
+        for (Gpio gpio : mGpio) {
+            if (gpio != null) {
+                gpio.unregisterGpioCallback(mEdgeCallback);
+            }
+        }
+        if (mCaptureThread != null) {
+            if (mCaptureHandler != null) {
+                mCaptureHandler.removeCallbacks(mUpdate);
+            }
+            mCaptureThread.quitSafely();
+            boolean interrupted = false;
+            while (mCaptureThread.isAlive()) {
+                try {
+                    mCaptureThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
+            mCaptureThread = null;
+            mCaptureHandler = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOException error = null;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (mGpio[i]!=null) {
+                try {
+                    mGpio[i].close();
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    mGpio[i] = null;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
         }
     }
 }
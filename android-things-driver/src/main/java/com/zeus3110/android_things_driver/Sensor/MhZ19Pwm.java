@@ -16,6 +16,9 @@
 
 package com.zeus3110.android_things_driver.Sensor;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.things.pio.Gpio;
@@ -23,19 +26,61 @@ import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.PeripheralManagerService;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
 public class MhZ19Pwm implements AutoCloseable {
     private static final String TAG = MhZ19Pwm.class.getSimpleName();
 
     private Gpio mGpio;
-    private long onTime;
+
+    /**
+     * One published measurement. Immutable, so all values belong to the same PWM cycle.
+     */
+    public static final class Snapshot {
+        /** Increases with every measured cycle, 0 before the first one. */
+        public final long sequence;
+        /** End of the cycle in {@link SystemClock#elapsedRealtimeNanos()} units. */
+        public final long timestamp;
+        /** High time of the PWM output in milliseconds. */
+        public final long highTime;
+        /** Low time of the PWM output in milliseconds. */
+        public final long lowTime;
+        /** CO2 concentration in ppm. */
+        public final int ppm;
+
+        Snapshot(long sequence, long timestamp, long highTime, long lowTime, int ppm) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.highTime = highTime;
+            this.lowTime = lowTime;
+            this.ppm = ppm;
+        }
+    }
+
+    // Latest measurement, replaced as a whole by the capture thread
+    private volatile Snapshot mSnapshot = new Snapshot(0, 0, 0, 0, 0);
 
     private static final int CO2_MAX_PPM = 5000;
     private static final int PWM_CYCLE_MS = 1004;
-
-    private PulseMesThread mThread;
+    // Accepted cycle length, nominal 1004ms +-5%
+    private static final long PWM_CYCLE_MIN_NS = PWM_CYCLE_MS * 950000L;
+    private static final long PWM_CYCLE_MAX_NS = PWM_CYCLE_MS * 1050000L;
+    // The output is always high for 2ms and low for 2ms at the start and end of a cycle
+    private static final long PWM_EDGE_NS = 2L * 1000000L;
+    // A noisy line produces a malformed cycle every second, log them at most this often
+    private static final long MALFORMED_LOG_INTERVAL_NS = 60L * 1000000000L;
+
+    // Edge callbacks run on this thread
+    private HandlerThread mCaptureThread;
+    private Handler mCaptureHandler;
+
+    // Decoder state, only touched on the capture thread. 0 means not seen yet.
+    private boolean mSignal;
+    private long mRiseTime;
+    private long mFallTime;
+    private long mMalformedLogTime;
+
+    // Only written on the capture thread
+    private volatile long mMalformedCycles;
 
     /**
      * Create a new MH-Z19 sensor driver connected on the given port.
@@ -50,6 +95,12 @@ public class MhZ19Pwm implements AutoCloseable {
             mGpio.setDirection(Gpio.DIRECTION_IN);
             mGpio.setEdgeTriggerType(Gpio.EDGE_BOTH);
 
+            // Initial state is set before the capture thread starts, which publishes it
+            mSignal = mGpio.getValue();
+            mCaptureThread = new HandlerThread(TAG);
+            mCaptureThread.start();
+            mCaptureHandler = new Handler(mCaptureThread.getLooper());
+            mGpio.registerGpioCallback(mEdgeCallback, mCaptureHandler);
         } catch (IOException|RuntimeException e) {
             try {
                 close();
@@ -57,57 +108,120 @@ public class MhZ19Pwm implements AutoCloseable {
             }
             throw e;
         }
-
-        mThread = new PulseMesThread();
-        mThread.start();
-        Log.i(TAG,"Start port read thread");
+        Log.i(TAG,"Start pulse capture");
     }
 
     public long GetPulseWidth() {
-        return onTime;
+        return mSnapshot.highTime;
     }
 
     public int GetCO2PPM() {
-
-        return (int)((CO2_MAX_PPM)*(onTime-2)/(PWM_CYCLE_MS-4));
+        return mSnapshot.ppm;
     }
 
-    public class PulseMesThread extends Thread {
+    /**
+     * Returns the latest measurement. Lock-free; compare the sequence number with an earlier
+     * snapshot to tell whether the value is new.
+     */
+    public Snapshot GetSnapshot() {
+        return mSnapshot;
+    }
 
-        public long mStartTime, mEndTime;
-        private boolean mRunning = true;
+    /**
+     * Returns the number of cycles dropped because their period was outside the datasheet
+     * limits, e.g. on a noisy line.
+     */
+    public long GetMalformedCycleCount() {
+        return mMalformedCycles;
+    }
 
-        public void run() {
+    // Timestamps rising and falling edges; a cycle is complete at the rising edge after the
+    // falling edge, so high and low time of the same cycle are measured
+    private final GpioCallback mEdgeCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            boolean signal;
             try {
-                while (mRunning) {
-                    while (mGpio.getValue() == false) {
-                        mStartTime = System.currentTimeMillis();
-                    }
-
-                    // falseが返る直前の時間を保持
-                    while (mGpio.getValue() == true) {
-                        mEndTime = System.currentTimeMillis();
-                    }
-
-                    onTime = mEndTime - mStartTime;
-                }
-
+                signal = gpio.getValue();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.e(TAG, "Pulse capture read failed", e);
+                return true;
+            }
+            if (signal == mSignal) {
+                // Missed the opposite edge, the cycle in progress is unusable. A high level
+                // here did not start at a known rising edge, so wait for the next real one.
+                mRiseTime = 0;
+                mFallTime = 0;
+                return true;
+            }
+            mSignal = signal;
+
+            if (!signal) {
+                mFallTime = (mRiseTime != 0) ? now : 0;
+                return true;
+            }
+            if (mRiseTime != 0 && mFallTime != 0) {
+                decode(mFallTime - mRiseTime, now - mFallTime, now);
             }
+            mRiseTime = now;
+            mFallTime = 0;
+            return true;
         }
 
-        public void quit() {
-            mRunning = false;
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            Log.w(TAG, gpio + ": Error event " + error);
         }
     };
 
+    // ppm = 5000 * (TH - 2ms) / (TH + TL - 4ms), with the measured period instead of the
+    // nominal 1004ms. Cycles outside the datasheet period are dropped; TH is clamped to
+    // [2ms, cycle - 2ms], since edge latency can shorten the fixed 2ms parts at 0 or full scale.
+    private void decode(long highNanos, long lowNanos, long now) {
+        long cycle = highNanos + lowNanos;
+        if (cycle < PWM_CYCLE_MIN_NS || cycle > PWM_CYCLE_MAX_NS) {
+            long count = mMalformedCycles + 1;
+            mMalformedCycles = count;
+            if (mMalformedLogTime == 0 || now - mMalformedLogTime >= MALFORMED_LOG_INTERVAL_NS) {
+                mMalformedLogTime = now;
+                Log.w(TAG, "Malformed PWM cycle of " + cycle / 1000000L + " ms, "
+                        + count + " dropped so far");
+            }
+            return;
+        }
+        long high = Math.min(Math.max(highNanos, PWM_EDGE_NS), cycle - PWM_EDGE_NS);
+        int ppm = (int) ((double) CO2_MAX_PPM * (high - PWM_EDGE_NS)
+                / (cycle - 2 * PWM_EDGE_NS));
+        // Only the capture thread replaces the snapshot
+        mSnapshot = new Snapshot(mSnapshot.sequence + 1, now, highNanos / 1000000L,
+                lowNanos / 1000000L, ppm);
+    }
+
     /**
      * Close the driver and the underlying device.
      */
     @Override
     public void close() throws IOException {
-        mThread.quit();
+        if (mGpio!=null) {
+            mGpio.unregisterGpioCallback(mEdgeCallback);
+        }
+        if (mCaptureThread != null) {
+            mCaptureThread.quitSafely();
+            boolean interrupted = false;
+            while (mCaptureThread.isAlive()) {
+                try {
+                    mCaptureThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            mCaptureThread = null;
+            mCaptureHandler = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
         if (mGpio!=null) {
             try {
                 mGpio.close();
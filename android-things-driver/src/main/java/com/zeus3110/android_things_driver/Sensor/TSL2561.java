@@ -16,13 +16,19 @@
 
 package com.zeus3110.android_things_driver.Sensor;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.util.Log;
 
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.I2cDevice;
 import com.google.android.things.pio.PeripheralManagerService;
 
 import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class TSL2561 implements AutoCloseable {
 
@@ -62,6 +68,71 @@ public class TSL2561 implements AutoCloseable {
     public static final int TIMING_TIME_402 = 0x02;
     public static final int TIMING_TIME_MANU = 0x03;
     private static final int TIMING_DEFAULT = TIMING_GAIN_1 | TIMING_TIME_402;
+    private static final int TIMING_MANUAL_START = 0x08;    // with TIMING_TIME_MANU
+    private static final int TIMING_TIME_MASK = 0x03;
+    // Wait a little longer than the nominal integration time for the data to be ready
+    private static final float INTEG_TIME_MARGIN = 1.1f;
+
+    // Lux calculation engine
+    @IntDef({LUX_ENGINE_FLOAT, LUX_ENGINE_INTEGER})
+    public @interface LuxEngine {}
+    public static final int LUX_ENGINE_FLOAT = 0;       // double math with Math.pow
+    public static final int LUX_ENGINE_INTEGER = 1;     // TAOS datasheet fixed point
+    @IntDef({PACKAGE_T, PACKAGE_CS})
+    public @interface SensorPackage {}
+    public static final int PACKAGE_T = 0;              // T, FN and CL packages
+    public static final int PACKAGE_CS = 1;             // ChipScale package
+
+    // Fixed point lux calculation (TAOS datasheet "Simplified Lux Calculation")
+    private static final int LUX_SCALE = 14;            // scale by 2^14
+    private static final int RATIO_SCALE = 9;           // scale ratio by 2^9
+    private static final int CH_SCALE = 10;             // scale channel values by 2^10
+    private static final int CHSCALE_TINT0 = 0x7517;    // 322/11 * 2^CH_SCALE
+    private static final int CHSCALE_TINT1 = 0x0FE7;    // 322/81 * 2^CH_SCALE
+    // The datasheet algorithm scales counts to gain x16, GetLuxData() reports gain x1 lux
+    private static final int GAIN_16_TO_1_SHIFT = 4;
+    // Ratio breakpoints (K) and channel 0 (B) / channel 1 (M) coefficients per segment
+    private static final int[] LUX_K_T = {
+            0x0040, 0x0080, 0x00C0, 0x0100, 0x0138, 0x019A, 0x029A, 0x029A };
+    private static final int[] LUX_B_T = {
+            0x01F2, 0x0214, 0x023F, 0x0270, 0x016F, 0x00D2, 0x0018, 0x0000 };
+    private static final int[] LUX_M_T = {
+            0x01BE, 0x02D1, 0x037B, 0x03FE, 0x01FC, 0x00FB, 0x0012, 0x0000 };
+    private static final int[] LUX_K_CS = {
+            0x0043, 0x0085, 0x00C8, 0x010A, 0x014D, 0x019A, 0x029A, 0x029A };
+    private static final int[] LUX_B_CS = {
+            0x0204, 0x0228, 0x0253, 0x0282, 0x0177, 0x0101, 0x0037, 0x0000 };
+    private static final int[] LUX_M_CS = {
+            0x01AD, 0x02C1, 0x0363, 0x03DF, 0x01DD, 0x0127, 0x002B, 0x0000 };
+
+    // Auto range ladder, least to most sensitive. For each integration time only the settings
+    // not beaten by a shorter time with more gain are kept (13.7ms x16 > 101ms x1 and
+    // 101ms x16 > 402ms x1), so the shortest integration time with enough counts is used.
+    private static final int[] AUTO_RANGE_TIMING = {
+            TIMING_GAIN_1 | TIMING_TIME_13R7,
+            TIMING_GAIN_16 | TIMING_TIME_13R7,
+            TIMING_GAIN_16 | TIMING_TIME_101,
+            TIMING_GAIN_16 | TIMING_TIME_402,
+    };
+    // ADC full scale per integration time (datasheet), 13.7ms and 101ms saturate below 0xFFFF
+    private static final int FULL_SCALE_13R7 = 5047;
+    private static final int FULL_SCALE_101 = 37177;
+    private static final int FULL_SCALE_402 = 65535;
+    // Step to a more sensitive setting below this channel 0 count (about 0.1% resolution)
+    private static final int AUTO_RANGE_MIN_COUNTS = 1000;
+    // Step to a less sensitive setting above this fraction of full scale
+    private static final float AUTO_RANGE_HIGH_FRACTION = 0.9f;
+    // Hysteresis: step up only if the count stays below half full scale there, step down only
+    // if the count stays above twice the minimum there
+    private static final float AUTO_RANGE_UP_FRACTION = 0.5f;
+    private static final int AUTO_RANGE_DOWN_FACTOR = 2;
+
+    // INTERRUPT PARAMETER
+    private static final int INTR_DISABLE = 0x00;
+    private static final int INTR_LEVEL = 0x10;
+    private static final int INTR_PERSIST_MASK = 0x0F;
+    public static final int PERSIST_EVERY_CYCLE = 0;
+    public static final int PERSIST_MAX = 15;
 
     // ID
     private static final int I_AM_TSL2561 = 0x50;
@@ -74,10 +145,70 @@ public class TSL2561 implements AutoCloseable {
     private static final int CMD_BLOCK = 0b00010000;
     private static final int CMD_SINGLE = CMD_CMDMODE;
     private static final int CMD_MULTI = CMD_CMDMODE | CMD_WORD;
+    private static final int CMD_BLOCK_READ = CMD_CMDMODE | CMD_BLOCK;
+    private static final int CMD_BLOCK_WRITE = CMD_CMDMODE | CMD_BLOCK;
+    private static final int CMD_CLEAR_INTR = CMD_CMDMODE | CMD_CLEAR;
+
+    // ADC data block: DATA0LOW, DATA0HIGH, DATA1LOW, DATA1HIGH
+    private static final int ADC_DATA_LENGTH = 4;
 
+    // Timing state cached from the last TIMING register write, guarded by mAdcBuffer
     private float SensorGain;
     private float SensorIntegTime;
+    private int mTimingReg;
+    private int mChScale;               // channel scale for the integer engine
+    private boolean mAutoRange;         // guarded by mAdcBuffer
+    private int mLuxEngine = LUX_ENGINE_FLOAT;
+    private int mPackage = PACKAGE_T;
 
+    // CH1/CH0 ratio of the last valid reading, used to convert lux thresholds to counts
+    private double mLastRatio;
+
+    private final byte[] mAdcBuffer = new byte[ADC_DATA_LENGTH];
+    private final byte[] mRegBuffer = new byte[2];      // command + data scratch
+
+    /**
+     * Listener for the threshold interrupt.
+     */
+    public interface ThresholdListener {
+        /**
+         * Called when the channel 0 count was outside the threshold window for the programmed
+         * persistence.
+         * @param sensor sensor which raised the interrupt.
+         * @param lux light level read after the interrupt.
+         */
+        void onThreshold(TSL2561 sensor, float lux);
+    }
+
+    private final CopyOnWriteArrayList<ThresholdListener> mThresholdListeners
+            = new CopyOnWriteArrayList<>();
+    // INT pin and the thread its callback runs on when no handler is given, guarded by this
+    private Gpio mIntGpio;
+    private HandlerThread mIntThread;
+    // Threshold state, guarded by mAdcBuffer
+    private boolean mInterruptEnabled;
+    private float mThresholdLowLux;
+    private float mThresholdHighLux;
+    private int mPersistence;
+    private final byte[] mThresholdBuffer = new byte[4];     // LOWLOW, LOWHIGH, HIGHLOW, HIGHHIGH
+
+    /**
+     * Listener for scheduled lux readings.
+     */
+    public interface LuxListener {
+        /**
+         * Called on the sampling thread once per completed integration.
+         * @param sensor sensor the reading is from.
+         * @param lux light level.
+         * @param timestamp end of the integration in {@link SystemClock#elapsedRealtimeNanos()}
+         *                  units, approximately.
+         */
+        void onLuxData(TSL2561 sensor, float lux, long timestamp);
+    }
+
+    // Sampling and manual integration state, guarded by this
+    private SamplingThread mSamplingThread;
+    private long mManualStartNanos;         // 0 when no manual integration is running
 
     /**
      * Create a new TSL2561 sensor driver connected on the given bus.
@@ -99,6 +230,16 @@ public class TSL2561 implements AutoCloseable {
         }
     }
 
+    /**
+     * Create a new TSL2561 sensor driver connected to the given I2C device.
+     * @param device I2C device of the sensor.
+     * @throws IOException
+     */
+    /*package*/ TSL2561(I2cDevice device) throws IOException {
+        mDevice = device;
+        InitSensor();
+    }
+
     // Initialize
     private void InitSensor() throws IOException
     {
@@ -114,29 +255,74 @@ public class TSL2561 implements AutoCloseable {
     0.80 < CH1/CH0 < 1.30 Lux = 0.00146 x CH0-0.00112x CH1
     1.30 < CH1/CH0  Lux = 0
      */
+    /**
+     * Read the light level. With auto range enabled the call blocks for one integration time
+     * per range switch, without holding the driver lock while it waits.
+     * @return light level in lux, or {@link Float#POSITIVE_INFINITY} when a channel is
+     *         saturated at the current setting (with auto range: at the least sensitive one),
+     *         as the clipped counts would give a value below the real light level.
+     * @throws IOException
+     */
     public float GetLuxData() throws IOException {
         double lux0, lux1;
         double ratio;
         double lux;
+        double scale;
         int ch0, ch1;
+        int chScale, engine, sensorPackage, fullScale;
+        long waitMs = 0;
+
+        // Each switch moves one step, so the ladder length bounds the retries
+        for (int i = 0; ; i++) {
+            if (waitMs > 0) {
+                SystemClock.sleep(waitMs);
+            }
+            synchronized (mAdcBuffer) {
+                ReadAdcData();
+                ch0 = (mAdcBuffer[0] & 0xFF) | ((mAdcBuffer[1] & 0xFF) << 8);
+                ch1 = (mAdcBuffer[2] & 0xFF) | ((mAdcBuffer[3] & 0xFF) << 8);
+
+                if (mAutoRange && i < AUTO_RANGE_TIMING.length) {
+                    int next = NextAutoRange(mTimingReg, ch0, ch1);
+                    if (next != mTimingReg) {
+                        waitMs = SwitchRange(next);
+                        continue;
+                    }
+                }
+                scale = 402.0 / SensorIntegTime / SensorGain;
+                chScale = mChScale;
+                engine = mLuxEngine;
+                sensorPackage = mPackage;
+                fullScale = FullScaleCounts(mTimingReg);
+            }
+            break;
+        }
 
-        ch0 = (ReadRegData(TSL2561_DATA0LOW) | (ReadRegData(TSL2561_DATA0HIGH)<<8) )& 0x0000FFFF;
-        ch1 = (ReadRegData(TSL2561_DATA1LOW) | (ReadRegData(TSL2561_DATA1HIGH)<<8) )& 0x0000FFFF;
+        if (ch0 >= fullScale || ch1 >= fullScale) {
+            return Float.POSITIVE_INFINITY;
+        }
 
-        if (ch0 == 0xFFFF) {
-            return 2500.0f;
+        if (engine == LUX_ENGINE_INTEGER) {
+            if (ch0 != 0) {
+                synchronized (mAdcBuffer) {
+                    mLastRatio = (double)ch1 / ch0;
+                }
+            }
+            return (float)CalculateLuxScaled(chScale, ch0, ch1, sensorPackage)
+                    / (1 << (LUX_SCALE + GAIN_16_TO_1_SHIFT));
         }
 
         lux0 = (double)ch0;
         lux1 = (double)ch1;
         ratio = lux1 / lux0;
+        if (ch0 != 0) {
+            synchronized (mAdcBuffer) {
+                mLastRatio = ratio;
+            }
+        }
 
-        ReadTimingReg();
-
-        lux0 *= (402.0/SensorIntegTime);
-        lux1 *= (402.0/SensorIntegTime);
-        lux0 /= SensorGain;
-        lux1 /= SensorGain;
+        lux0 *= scale;
+        lux1 *= scale;
 
         if (ratio <= 0.5) {
             lux = 0.03040 * lux0 - 0.06200 * lux0 * Math.pow(ratio,1.4);
@@ -152,58 +338,666 @@ public class TSL2561 implements AutoCloseable {
         return (float)lux;
     }
 
+    /**
+     * Select how {@link #GetLuxData()} converts the channel counts to lux. The integer engine
+     * is the TAOS datasheet fixed point algorithm with per package coefficient tables; it needs
+     * no floating point math per sample and follows the datasheet segments more closely than
+     * the float engine, which uses the T package formula for all parts.
+     * @param engine lux calculation engine.
+     * @param sensorPackage package of the sensor, used by the integer engine.
+     */
+    public void SetLuxEngine(@LuxEngine int engine, @SensorPackage int sensorPackage) {
+        synchronized (mAdcBuffer) {
+            mLuxEngine = engine;
+            mPackage = sensorPackage;
+        }
+    }
+
+    /**
+     * Calculate lux from raw channel counts with the TAOS datasheet integer algorithm, in the
+     * same units as {@link #GetLuxData()}. The datasheet normalizes the counts to gain x16 and
+     * its result is 16 times this value; the driver has always normalized to gain x1.
+     * @param gain gain setting used for the counts.
+     * @param time integration time setting used for the counts. Manual integration is treated
+     *             as 402ms (no scaling).
+     * @param ch0 channel 0 (visible and infrared) count.
+     * @param ch1 channel 1 (infrared) count.
+     * @param sensorPackage package of the sensor.
+     * @return light level in lux.
+     */
+    public static float CalculateLux(@SensorGainReg int gain, @SensorIntegTimeReg int time,
+                                     int ch0, int ch1, @SensorPackage int sensorPackage) {
+        long lux = CalculateLuxScaled(ChannelScale(gain | time), ch0, ch1, sensorPackage);
+        return (float)lux / (1 << (LUX_SCALE + GAIN_16_TO_1_SHIFT));
+    }
+
+    // Returns lux scaled by 2^LUX_SCALE, not rounded
+    private static long CalculateLuxScaled(int chScale, int ch0, int ch1, int sensorPackage) {
+        long channel0, channel1;
+        long ratio1, ratio;
+        int[] k, b, m;
+        int i;
+
+        // Scale the channel values to 402ms and gain x16. Long math: 65535 * chScale
+        // does not fit in an int.
+        channel0 = ((long)ch0 * chScale) >> CH_SCALE;
+        channel1 = ((long)ch1 * chScale) >> CH_SCALE;
+
+        // Ratio of the scaled channel values, rounded
+        ratio1 = 0;
+        if (channel0 != 0) {
+            ratio1 = (channel1 << (RATIO_SCALE + 1)) / channel0;
+        }
+        ratio = (ratio1 + 1) >> 1;
+
+        if (sensorPackage == PACKAGE_CS) {
+            k = LUX_K_CS;
+            b = LUX_B_CS;
+            m = LUX_M_CS;
+        } else {
+            k = LUX_K_T;
+            b = LUX_B_T;
+            m = LUX_M_T;
+        }
+        for (i = 0; i < k.length - 1; i++) {
+            if (ratio <= k[i]) {
+                break;
+            }
+        }
+
+        long lux = channel0 * b[i] - channel1 * m[i];
+        // Do not allow a negative lux value
+        if (lux < 0) {
+            lux = 0;
+        }
+        return lux;
+    }
+
+    // Channel scale factor to 402ms and gain x16, precomputed per timing setting
+    private static int ChannelScale(int timing) {
+        int chScale;
+
+        switch (timing & 0x3) {
+            case TIMING_TIME_13R7:
+                chScale = CHSCALE_TINT0;
+                break;
+            case TIMING_TIME_101:
+                chScale = CHSCALE_TINT1;
+                break;
+            default:
+                chScale = 1 << CH_SCALE;
+                break;
+        }
+        if ((timing & TIMING_GAIN_16) == 0) {
+            chScale = chScale << 4;
+        }
+        return chScale;
+    }
+
+    /**
+     * Enable or disable automatic gain and integration time selection. When enabled, each
+     * {@link #GetLuxData()} checks the raw counts and moves one step along the
+     * 13.7ms x1, 13.7ms x16, 101ms x16, 402ms x16 ladder: less sensitive when near saturation or
+     * when the count would stay well above {@value #AUTO_RANGE_MIN_COUNTS} there, more
+     * sensitive when below it. After a switch the integration is restarted and the sample is
+     * read again, so the call blocks for up to one integration time per step. Above the range
+     * of 13.7ms x1 it returns {@link Float#POSITIVE_INFINITY}.
+     * Cannot be enabled while background sampling or a manual integration is running.
+     * @param enable true to enable auto range.
+     * @throws IOException
+     */
+    public void SetAutoRange(boolean enable) throws IOException {
+        long waitMs = 0;
+
+        synchronized (this) {
+            if (enable) {
+                CheckNoManualIntegration();
+                if (IsSamplingRunning()) {
+                    throw new IllegalStateException("auto range while sampling");
+                }
+            }
+            synchronized (mAdcBuffer) {
+                mAutoRange = enable;
+                if (enable && AutoRangeIndex(mTimingReg) < 0) {
+                    // Start from the middle of the ladder when the current setting is not on it
+                    waitMs = SwitchRange(AUTO_RANGE_TIMING[AUTO_RANGE_TIMING.length / 2]);
+                }
+            }
+        }
+        if (waitMs > 0) {
+            SystemClock.sleep(waitMs);
+        }
+    }
+
+    public boolean IsAutoRange() {
+        synchronized (mAdcBuffer) {
+            return mAutoRange;
+        }
+    }
+
+    // Returns the timing register value for the next sample
+    private static int NextAutoRange(int timing, int ch0, int ch1) {
+        int index = AutoRangeIndex(timing);
+        if (index < 0) {
+            return timing;
+        }
+        int fullScale = FullScaleCounts(timing);
+        double sensitivity = Sensitivity(timing);
+
+        if (Math.max(ch0, ch1) >= fullScale * AUTO_RANGE_HIGH_FRACTION) {
+            return index > 0 ? AUTO_RANGE_TIMING[index - 1] : timing;
+        }
+        if (ch0 < AUTO_RANGE_MIN_COUNTS) {
+            if (index + 1 < AUTO_RANGE_TIMING.length) {
+                int up = AUTO_RANGE_TIMING[index + 1];
+                double projected = ch0 * Sensitivity(up) / sensitivity;
+                if (projected < FullScaleCounts(up) * AUTO_RANGE_UP_FRACTION) {
+                    return up;
+                }
+            }
+            return timing;
+        }
+        if (index > 0) {
+            int down = AUTO_RANGE_TIMING[index - 1];
+            double projected = ch0 * Sensitivity(down) / sensitivity;
+            if (projected >= AUTO_RANGE_MIN_COUNTS * AUTO_RANGE_DOWN_FACTOR) {
+                return down;
+            }
+        }
+        return timing;
+    }
+
+    private static int AutoRangeIndex(int timing) {
+        for (int i = 0; i < AUTO_RANGE_TIMING.length; i++) {
+            if (AUTO_RANGE_TIMING[i] == timing) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Counts per unit of light, relative to 402ms x1
+    private static double Sensitivity(int timing) {
+        return (TimingGain(timing) * TimingIntegTime(timing)) / 402.0;
+    }
+
+    private static int FullScaleCounts(int timing) {
+        switch (timing & 0x3) {
+            case TIMING_TIME_13R7:
+                return FULL_SCALE_13R7;
+            case TIMING_TIME_101:
+                return FULL_SCALE_101;
+            default:
+                return FULL_SCALE_402;
+        }
+    }
+
+    // Change the timing and restart the integration. Returns the time to wait before the data
+    // of the new setting can be read. Callers must hold the mAdcBuffer lock and release it
+    // while they wait.
+    private long SwitchRange(int timing) throws IOException {
+        SetTimingReg(timing);
+        RestartIntegration();
+        return IntegrationWaitMs();
+    }
+
+    // Power cycling restarts the integration, so the next data is from a full cycle started now
+    private void RestartIntegration() throws IOException {
+        SensorPowerDown();
+        SensorPowerUp();
+    }
+
+    // Time from the start of an integration until its data can be read
+    private long IntegrationWaitMs() {
+        synchronized (mAdcBuffer) {
+            return (long) Math.ceil(SensorIntegTime * INTEG_TIME_MARGIN) + 1;
+        }
+    }
+
+    /**
+     * Start a background thread that reads the sensor once per completed integration and
+     * delivers the lux value to the listener. Every sample starts its own integration window, so
+     * the host timer and the sensor oscillator cannot drift apart and no read returns the
+     * counts of an integration that was already delivered.
+     * Not available with manual integration ({@link #TIMING_TIME_MANU}), auto range or the
+     * threshold interrupt: the restart power cycles the sensor, which resets the interrupt
+     * persistence count, and an auto range switch would wait for a second integration.
+     * @param listener listener called on the sampling thread.
+     */
+    public synchronized void StartSampling(LuxListener listener) throws IllegalStateException {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        synchronized (mAdcBuffer) {
+            if ((mTimingReg & TIMING_TIME_MASK) == TIMING_TIME_MANU) {
+                throw new IllegalStateException("scheduled sampling requires a fixed integration time");
+            }
+            if (mAutoRange) {
+                throw new IllegalStateException("sampling with auto range enabled");
+            }
+        }
+        if (mIntGpio != null) {
+            throw new IllegalStateException("sampling with the threshold interrupt enabled");
+        }
+        if (mSamplingThread != null) {
+            if (mSamplingThread.isAlive()) {
+                throw new IllegalStateException("sampling is already running");
+            }
+            // The thread stopped on its own after a read error
+            mSamplingThread = null;
+        }
+        mSamplingThread = new SamplingThread(listener);
+        mSamplingThread.start();
+    }
+
+    /**
+     * Stop the background sampling thread and wait for it to finish.
+     */
+    public synchronized void StopSampling() {
+        SamplingThread thread = mSamplingThread;
+        if (thread == null) {
+            return;
+        }
+        mSamplingThread = null;
+        thread.quit();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A thread that stopped on its own after a read error no longer counts.
+    // Callers must hold the lock on this.
+    private boolean IsSamplingRunning() {
+        return mSamplingThread != null && mSamplingThread.isAlive();
+    }
+
+    private class SamplingThread extends Thread {
+
+        private final LuxListener mListener;
+        private volatile boolean mRunning = true;
+
+        SamplingThread(LuxListener listener) {
+            super(TAG + "-sampling");
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                try {
+                    RestartIntegration();
+                    Thread.sleep(IntegrationWaitMs());
+                    float lux = GetLuxData();
+                    mListener.onLuxData(TSL2561.this, lux, SystemClock.elapsedRealtimeNanos());
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException|IllegalStateException e) {
+                    Log.e(TAG, "Background sampling stopped", e);
+                    break;
+                }
+            }
+        }
+
+        public void quit() {
+            mRunning = false;
+            interrupt();
+        }
+    }
+
+    /**
+     * Start a manual integration window with the given gain. The sensor integrates until
+     * {@link #StopManualIntegration()} is called. Auto range must be disabled.
+     * @param gain gain for the integration.
+     * @throws IOException
+     */
+    public synchronized void StartManualIntegration(@SensorGainReg int gain) throws IOException {
+        synchronized (mAdcBuffer) {
+            if (mAutoRange) {
+                throw new IllegalStateException("manual integration with auto range enabled");
+            }
+            if (IsSamplingRunning()) {
+                throw new IllegalStateException("manual integration while sampling");
+            }
+            // Stop any running window first so the new one starts from zero counts
+            SetTimingReg(gain | TIMING_TIME_MANU);
+            WriteRegData(TSL2561_TIMING, gain | TIMING_TIME_MANU | TIMING_MANUAL_START);
+            mManualStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    /**
+     * Stop the manual integration window. The following {@link #GetLuxData()} call scales the
+     * counts by the measured window length.
+     * @return length of the integration window in milliseconds.
+     * @throws IOException
+     */
+    public synchronized float StopManualIntegration() throws IOException {
+        synchronized (mAdcBuffer) {
+            if (mManualStartNanos == 0) {
+                throw new IllegalStateException("no manual integration running");
+            }
+            SetTimingReg(mTimingReg & TIMING_GAIN_16 | TIMING_TIME_MANU);
+            float windowMs = (SystemClock.elapsedRealtimeNanos() - mManualStartNanos) / 1000000.0f;
+            mManualStartNanos = 0;
+
+            SensorIntegTime = windowMs;
+            // 402ms is the unscaled reference for the integer engine as well
+            mChScale = Math.round((402.0f / windowMs) * (1 << CH_SCALE));
+            if ((mTimingReg & TIMING_GAIN_16) == 0) {
+                mChScale = mChScale << 4;
+            }
+            return windowMs;
+        }
+    }
+
+    /**
+     * Integrate for a custom window and return the light level. Blocks for the window length.
+     * @param gain gain for the integration.
+     * @param windowMs integration window in milliseconds. Counts saturate at 65535, so long
+     *                 windows need the low gain in bright light.
+     * @return light level in lux.
+     * @throws IOException
+     */
+    public synchronized float ReadManualIntegration(@SensorGainReg int gain, int windowMs)
+            throws IOException {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + windowMs);
+        }
+        StartManualIntegration(gain);
+        SystemClock.sleep(windowMs);
+        StopManualIntegration();
+        return GetLuxData();
+    }
+
     // Timing Register
-    public int SetGainAndIntegtime(@SensorGainReg int gain, @SensorIntegTimeReg int time) throws IOException {
+    public synchronized int SetGainAndIntegtime(@SensorGainReg int gain, @SensorIntegTimeReg int time) throws IOException {
         int param;
+        CheckNoManualIntegration();
         param = gain | time;
         return SetTimingReg(param);
     }
 
+    // A timing write ends the running window, which StopManualIntegration() would then
+    // scale by a length it did not have. Callers must hold the lock on this.
+    private void CheckNoManualIntegration() {
+        if (mManualStartNanos != 0) {
+            throw new IllegalStateException("manual integration running, stop it first");
+        }
+    }
+
     private int SetTimingReg(int parameter) throws IOException
     {
         int buf;
 
-        buf = (byte)(parameter & 0x000000FF);
         WriteRegData(TSL2561_TIMING, parameter);
 
         buf = ReadRegData(TSL2561_TIMING);
+        UpdateTiming(buf);
+
+        // Counts per lux changed, keep the programmed thresholds at the same light level
+        synchronized (mAdcBuffer) {
+            if (mInterruptEnabled) {
+                WriteThresholds();
+            }
+        }
 
         return buf;
     }
 
-    private int ReadTimingReg() throws IOException
-    {
-        int i;
-        int buf;
+    /**
+     * Enable the threshold interrupt. The INT pin is driven low when the channel 0 count stays
+     * outside the window for the given number of integration cycles; registered
+     * {@link ThresholdListener}s are then notified and the interrupt is cleared.
+     * The lux thresholds are converted to channel 0 counts using the current gain, integration
+     * time and CH1/CH0 ratio of the last reading, and reprogrammed when the timing changes.
+     * Not available while background sampling is running.
+     * @param intPin GPIO pin name the INT output is connected to.
+     * @param lowLux lower threshold in lux.
+     * @param highLux upper threshold in lux.
+     * @param persistence {@link #PERSIST_EVERY_CYCLE} to interrupt after every integration
+     *                    cycle, 1 for any value out of the window, or 2 to {@link #PERSIST_MAX}
+     *                    consecutive out of window cycles.
+     * @param handler handler the listeners are called on, or null for a thread owned by the
+     *                driver. The handler must not be the main looper: each interrupt reads the
+     *                sensor, which can block for several integration times with auto range.
+     * @throws IOException
+     */
+    public synchronized void EnableThresholdInterrupt(String intPin, float lowLux, float highLux,
+                                                      int persistence, Handler handler)
+            throws IOException {
+        if (lowLux < 0 || highLux < lowLux) {
+            throw new IllegalArgumentException("invalid lux thresholds: " + lowLux + ", " + highLux);
+        }
+        if (persistence < PERSIST_EVERY_CYCLE || persistence > PERSIST_MAX) {
+            throw new IllegalArgumentException("persistence out of range: " + persistence);
+        }
+        if (IsSamplingRunning()) {
+            throw new IllegalStateException("threshold interrupt while sampling");
+        }
+        if (mIntGpio != null) {
+            DisableThresholdInterrupt();
+        }
 
-        buf = ReadRegData(TSL2561_TIMING);
+        // Fresh CH1/CH0 ratio for the lux to counts conversion
+        GetLuxData();
+
+        synchronized (mAdcBuffer) {
+            mThresholdLowLux = lowLux;
+            mThresholdHighLux = highLux;
+            mPersistence = persistence;
+            WriteThresholds();
+        }
+
+        PeripheralManagerService pioService = new PeripheralManagerService();
+        mIntGpio = pioService.openGpio(intPin);
+        try {
+            mIntGpio.setDirection(Gpio.DIRECTION_IN);
+            mIntGpio.setActiveType(Gpio.ACTIVE_HIGH);
+            mIntGpio.setEdgeTriggerType(Gpio.EDGE_FALLING);     // INT is active low
+            if (handler == null) {
+                mIntThread = new HandlerThread(TAG + "-interrupt");
+                mIntThread.start();
+                handler = new Handler(mIntThread.getLooper());
+            }
+            mIntGpio.registerGpioCallback(mIntCallback, handler);
+
+            // Clear a stale interrupt before enabling, otherwise INT may already be low
+            ClearInterrupt();
+            WriteRegData(TSL2561_INTERRUPT, INTR_LEVEL | (persistence & INTR_PERSIST_MASK));
+            synchronized (mAdcBuffer) {
+                mInterruptEnabled = true;
+            }
+        } catch (IOException|RuntimeException e) {
+            try {
+                DisableThresholdInterrupt();
+            } catch (IOException|RuntimeException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Disable the threshold interrupt and release the INT pin.
+     * @throws IOException
+     */
+    public synchronized void DisableThresholdInterrupt() throws IOException {
+        synchronized (mAdcBuffer) {
+            mInterruptEnabled = false;
+        }
+        try {
+            if (mDevice != null) {
+                WriteRegData(TSL2561_INTERRUPT, INTR_DISABLE);
+                ClearInterrupt();
+            }
+        } finally {
+            if (mIntGpio != null) {
+                try {
+                    mIntGpio.unregisterGpioCallback(mIntCallback);
+                    mIntGpio.close();
+                } finally {
+                    mIntGpio = null;
+                }
+            }
+            if (mIntThread != null) {
+                mIntThread.quitSafely();
+                // A listener may disable the interrupt from the callback thread itself
+                if (Thread.currentThread() != mIntThread) {
+                    boolean interrupted = false;
+                    while (mIntThread.isAlive()) {
+                        try {
+                            mIntThread.join();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                mIntThread = null;
+            }
+        }
+    }
+
+    public void AddThresholdListener(ThresholdListener listener) {
+        mThresholdListeners.addIfAbsent(listener);
+    }
+
+    public void RemoveThresholdListener(ThresholdListener listener) {
+        mThresholdListeners.remove(listener);
+    }
 
-        if ((buf & TIMING_GAIN_16)!= 0x0){
-            SensorGain = 16.0f;
+    private final GpioCallback mIntCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            if (mDevice == null) {
+                return false;
+            }
+            synchronized (mAdcBuffer) {
+                // Edge queued before the interrupt was disabled
+                if (!mInterruptEnabled) {
+                    return true;
+                }
+            }
+            try {
+                float lux = GetLuxData();
+                ClearInterrupt();
+                for (ThresholdListener listener : mThresholdListeners) {
+                    listener.onThreshold(TSL2561.this, lux);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Threshold interrupt handling failed", e);
+            }
+            return true;
+        }
+
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            Log.w(TAG, gpio + ": Error event " + error);
+        }
+    };
+
+    // Program both thresholds with one block write
+    private void WriteThresholds() throws IOException {
+        double scale, ratio;
+        float lowLux, highLux;
+        int low, high;
+
+        synchronized (mAdcBuffer) {
+            scale = 402.0 / SensorIntegTime / SensorGain;
+            ratio = mLastRatio;
+            lowLux = mThresholdLowLux;
+            highLux = mThresholdHighLux;
+        }
+        low = LuxToCounts(lowLux, scale, ratio);
+        high = LuxToCounts(highLux, scale, ratio);
+
+        synchronized (mThresholdBuffer) {
+            mThresholdBuffer[0] = (byte)(low & 0xFF);
+            mThresholdBuffer[1] = (byte)((low >> 8) & 0xFF);
+            mThresholdBuffer[2] = (byte)(high & 0xFF);
+            mThresholdBuffer[3] = (byte)((high >> 8) & 0xFF);
+            mDevice.writeRegBuffer(CMD_BLOCK_WRITE | TSL2561_THRESHLOWLOW, mThresholdBuffer,
+                    mThresholdBuffer.length);
+        }
+    }
+
+    // Inverse of the lux formula for channel 0 at a fixed CH1/CH0 ratio
+    private static int LuxToCounts(float lux, double scale, double ratio) {
+        double luxPerCount;
+
+        if (ratio <= 0.5) {
+            luxPerCount = 0.03040 - 0.06200 * Math.pow(ratio,1.4);
+        } else if (ratio <= 0.61) {
+            luxPerCount = 0.02240 - 0.03100 * ratio;
+        } else if (ratio <= 0.80) {
+            luxPerCount = 0.01280 - 0.01530 * ratio;
+        } else if (ratio <= 1.30) {
+            luxPerCount = 0.00146 - 0.00112 * ratio;
         } else {
-            SensorGain = 1.0f;
+            // No lux for this spectrum, fall back to the channel 0 only coefficient
+            luxPerCount = 0.03040;
         }
 
-        i = buf & 0x3;
-        switch (i) {
-            case 0:
-                SensorIntegTime = 13.7f;
-                break;
-            case 1:
-                SensorIntegTime = 101.0f;
-                break;
-            case 2:
-                SensorIntegTime = 402.0f;
-                break;
-            default:
-                SensorIntegTime = 1.0f;
-                break;
+        double counts = lux / (luxPerCount * scale);
+        if (counts >= 0xFFFF) {
+            return 0xFFFF;
+        }
+        return (int)Math.round(counts);
+    }
+
+    private void ClearInterrupt() throws IOException {
+        synchronized (mRegBuffer) {
+            mRegBuffer[0] = (byte)CMD_CLEAR_INTR;
+            mDevice.write(mRegBuffer,1);
+        }
+    }
+
+    // Cache gain and integration time so that a lux read needs no timing register access
+    private void UpdateTiming(int buf)
+    {
+        float gain, integTime;
+
+        gain = TimingGain(buf);
+        integTime = TimingIntegTime(buf);
+
+        synchronized (mAdcBuffer) {
+            SensorGain = gain;
+            SensorIntegTime = integTime;
+            mTimingReg = buf & (TIMING_GAIN_16 | 0x3);
+            mChScale = ChannelScale(buf);
         }
+    }
 
-        Log.i(TAG,"SensorGain Data: "+String.valueOf(SensorGain));
-        Log.i(TAG,"SensorIntegTime Data: "+String.valueOf(SensorIntegTime));
+    private static float TimingGain(int timing)
+    {
+        if ((timing & TIMING_GAIN_16)!= 0x0){
+            return 16.0f;
+        } else {
+            return 1.0f;
+        }
+    }
 
-        return (int)buf;
+    private static float TimingIntegTime(int timing)
+    {
+        switch (timing & 0x3) {
+            case TIMING_TIME_13R7:
+                return 13.7f;
+            case TIMING_TIME_101:
+                return 101.0f;
+            case TIMING_TIME_402:
+                return 402.0f;
+            default:
+                return 1.0f;
+        }
     }
 
     /**
@@ -211,6 +1005,16 @@ public class TSL2561 implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        StopSampling();
+        synchronized (this) {
+            if (mIntGpio != null) {
+                try {
+                    DisableThresholdInterrupt();
+                } catch (IOException|RuntimeException e) {
+                    Log.w(TAG, "Failed to disable threshold interrupt", e);
+                }
+            }
+        }
         if (mDevice!=null) {
             try {
                 mDevice.close();
@@ -247,23 +1051,30 @@ public class TSL2561 implements AutoCloseable {
     }
 
     private void WriteRegData(int RegAddress, int RegData) throws IOException{
-        byte buf[]=new byte[1];
-        int bufdata;
-        bufdata = CMD_SINGLE | RegAddress;
-        buf[0] = (byte)(bufdata & 0x000000FF);
-        mDevice.write(buf,1);
-        buf[0] = (byte)(RegData & 0x000000FF);
-        mDevice.write(buf,1);
+        // Command and data byte in one write transaction
+        synchronized (mRegBuffer) {
+            mRegBuffer[0] = (byte)((CMD_SINGLE | RegAddress) & 0x000000FF);
+            mRegBuffer[1] = (byte)(RegData & 0x000000FF);
+            mDevice.write(mRegBuffer,2);
+        }
+    }
+
+    // Read both ADC channels with one block read (command write + 4 byte read) so that
+    // channel 0 and channel 1 come from the same integration cycle.
+    private void ReadAdcData() throws IOException {
+        if (mDevice == null) {
+            throw new IllegalStateException("I2C device is already closed");
+        }
+        mDevice.readRegBuffer(CMD_BLOCK_READ | TSL2561_DATA0LOW, mAdcBuffer, ADC_DATA_LENGTH);
     }
 
     private int ReadRegData(int RegAddress) throws IOException{
-        byte buf[]=new byte[1];
-        int bufdata;
-        bufdata = CMD_SINGLE | RegAddress;
-        buf[0] = (byte)(bufdata & 0x000000FF);
-        mDevice.write(buf,1);
-        mDevice.read(buf,1);
-        return (buf[0] & 0x000000FF);
+        synchronized (mRegBuffer) {
+            mRegBuffer[0] = (byte)((CMD_SINGLE | RegAddress) & 0x000000FF);
+            mDevice.write(mRegBuffer,1);
+            mDevice.read(mRegBuffer,1);
+            return (mRegBuffer[0] & 0x000000FF);
+        }
     }
 
 }
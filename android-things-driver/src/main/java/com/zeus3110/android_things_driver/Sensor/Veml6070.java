@@ -24,8 +24,13 @@
 
 package com.zeus3110.android_things_driver.Sensor;
 
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
+import android.util.Log;
 
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.I2cDevice;
 import com.google.android.things.pio.PeripheralManagerService;
 
@@ -33,15 +38,35 @@ import java.io.IOException;
 
 public class Veml6070 implements AutoCloseable {
 
+    private static final String TAG = Veml6070.class.getSimpleName();
+
     // I2C address for the sensor.
     public static final int I2C_ADDRESS = 0x38;
     public static final int I2C_ADDRESS_MSB = 0x39;
+    public static final int I2C_ADDRESS_ARA = 0x0C;     // Alert Response Address, clears ACK
 
     // Config Data for VEML6070
     public static final byte VEML6070_SETTINGS = 0x02;  // ACK=0 ACK_THD=0 SD=0
+    private static final int VEML6070_SD = 0x01;        // shutdown
+    private static final int VEML6070_ACK = 0x20;       // ACK enable
+    private static final int VEML6070_ACK_THD = 0x10;   // ACK threshold 145 steps
+    // Command bits kept when the integration time changes
+    private static final int VEML6070_KEEP_MASK = VEML6070_SD | VEML6070_ACK | VEML6070_ACK_THD;
+    private static final int VEML6070_IT_SHIFT = 2;
+
+    // Integration time 1T with Rset=270k
+    private static final float INTEG_TIME_1T_MS = 112.5f;
+    private static final float INTEG_TIME_MIN_MS = INTEG_TIME_1T_MS / 2.0f;
+    // Wait a little longer than the nominal integration time after wake up
+    private static final float INTEG_TIME_MARGIN = 1.1f;
+    // Retries when the MSB changes between the two MSB reads of a torn-read check
+    private static final int TORN_READ_RETRIES = 3;
 
     //
     public static final float UVA_SENSE_STEP_270K_1T = 5.625f;       // 5.625 uW/cm²/step 270kOhm 1T
+    // UV index scale from the application note risk levels: 560 steps at 1T (270kOhm) is the
+    // low/moderate boundary at UVI 3, about 1050 uW/cm² per UV index
+    public static final float UVA_PER_UV_INDEX = 560.0f / 3.0f * UVA_SENSE_STEP_270K_1T;
 
     private int integTime;
 
@@ -55,9 +80,65 @@ public class Veml6070 implements AutoCloseable {
     public static final int IT_2 = 0x2;     // 2T
     public static final int IT_4 = 0x3;     // 4T
 
+    /**
+     * ACK threshold in UV steps.
+     */
+    @IntDef({ACK_THD_102, ACK_THD_145})
+    public @interface AckThreshold {}
+    public static final int ACK_THD_102 = 0x0;
+    public static final int ACK_THD_145 = VEML6070_ACK_THD;
+
     private I2cDevice mDevice;
     private I2cDevice mDeviceMsb;
+    private I2cDevice mDeviceAra;
+    private String mBus;
+
+    private int mCommand;                               // last written command byte
+    private final byte[] mBuffer = new byte[1];         // read/write scratch, also the bus lock
+    private int mOneShotCount;                          // one-shot reads waiting, guarded by mBuffer
+    private boolean mOneShotWasShutdown;                // SD before the first of them, guarded by mBuffer
+
+    /**
+     * Listener for duty-cycled readings.
+     */
+    public interface UVListener {
+        /**
+         * Called on the duty cycle thread after each sample.
+         * @param sensor sensor the reading is from.
+         * @param uv UVA level in uW/cm².
+         */
+        void onUVData(Veml6070 sensor, float uv);
+    }
 
+    private DutyCycleThread mDutyCycleThread;          // guarded by this
+
+    // Last bus reading, guarded by mBuffer
+    private float mCachedUV;
+    private long mCachedTimeNanos;
+    private boolean mCacheValid;
+
+    // Rolling UV index window of bus readings, guarded by mBuffer
+    private long mWindowNanos;
+    private long[] mWindowTimes;
+    private float[] mWindowValues;
+    private int mWindowHead;                // oldest entry
+    private int mWindowCount;
+    private double mWindowSum;
+
+    /**
+     * Listener for the ACK (UV threshold) signal.
+     */
+    public interface AckListener {
+        /**
+         * Called when the sensor pulled the ACK line. The alert is already cleared.
+         * @param sensor sensor which raised the alert.
+         * @param uv UVA level in uW/cm² read after the alert.
+         */
+        void onAck(Veml6070 sensor, float uv);
+    }
+
+    private Gpio mAckGpio;
+    private AckListener mAckListener;
 
     /**
      * Create a new VEML6070 sensor driver connected on the given bus.
@@ -68,6 +149,7 @@ public class Veml6070 implements AutoCloseable {
         PeripheralManagerService pioService = new PeripheralManagerService();
         I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
         I2cDevice device_data = pioService.openI2cDevice(bus, I2C_ADDRESS_MSB);
+        mBus = bus;
 
         try {
             connect(device,device_data);
@@ -93,6 +175,14 @@ public class Veml6070 implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        stopDutyCycle();
+        if (mAckGpio != null || mDeviceAra != null) {
+            try {
+                disableAck();
+            } catch (IOException|RuntimeException e) {
+                Log.w(TAG, "Failed to disable ACK", e);
+            }
+        }
         if ((mDevice!=null)&&(mDeviceMsb!=null)) {
             try {
                     mDevice.close();
@@ -110,10 +200,426 @@ public class Veml6070 implements AutoCloseable {
      * @throws IOException
      */
     public void setMode(@IntegrateTime int integtime) throws IOException {
-        byte[] buf = new byte[1];
-        buf[0] = (byte) (VEML6070_SETTINGS | (integtime << 2));
-        mDevice.write(buf,1);
-        integTime=integtime;
+        synchronized (mBuffer) {
+            WriteCommand(VEML6070_SETTINGS | (integtime << VEML6070_IT_SHIFT)
+                    | (mCommand & VEML6070_KEEP_MASK));
+            integTime=integtime;
+        }
+    }
+
+    /**
+     * Put the sensor into shutdown or wake it up. In shutdown the sensor does not integrate and
+     * the data registers keep the last value.
+     * @param shutdown true to shut down.
+     * @throws IOException
+     */
+    public void setShutdown(boolean shutdown) throws IOException {
+        synchronized (mBuffer) {
+            WriteCommand(shutdown ? (mCommand | VEML6070_SD) : (mCommand & ~VEML6070_SD));
+        }
+    }
+
+    public boolean isShutdown() {
+        synchronized (mBuffer) {
+            return (mCommand & VEML6070_SD) != 0;
+        }
+    }
+
+    /**
+     * Wake the sensor, wait for one integration and read. The sensor is shut down again
+     * afterwards if it was shut down before. Blocks for the integration time, without holding
+     * the bus lock, so other calls are not held up meanwhile.
+     * Not available while duty cycling, which switches SD on its own schedule; use the
+     * {@link UVListener} readings instead.
+     * @return UVA level in uW/cm².
+     * @throws IOException
+     */
+    public float ReadUVDataOneShot() throws IOException {
+        synchronized (this) {
+            if (isDutyCycleRunning()) {
+                throw new IllegalStateException("one-shot read while duty cycling");
+            }
+            synchronized (mBuffer) {
+                // Concurrent one-shot reads share the wake up; the last one restores SD
+                if (mOneShotCount == 0) {
+                    mOneShotWasShutdown = isShutdown();
+                }
+                setShutdown(false);
+                mOneShotCount++;
+            }
+        }
+        try {
+            SystemClock.sleep(getIntegrationTimeMs());
+            return ReadUVData();
+        } finally {
+            synchronized (mBuffer) {
+                if (--mOneShotCount == 0 && mOneShotWasShutdown) {
+                    setShutdown(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start duty-cycled sampling: the sensor is kept in shutdown and only woken for one
+     * integration every period. Readings are delivered to the listener.
+     * Not available while a one-shot read is running.
+     * @param periodMs sampling period in milliseconds, at least the integration time.
+     * @param listener listener called on the duty cycle thread.
+     */
+    public synchronized void startDutyCycle(long periodMs, UVListener listener)
+            throws IllegalStateException {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (periodMs < getIntegrationTimeMs()) {
+            throw new IllegalArgumentException("period shorter than the integration time: "
+                    + periodMs);
+        }
+        if (isDutyCycleRunning()) {
+            throw new IllegalStateException("duty cycle is already running");
+        }
+        synchronized (mBuffer) {
+            // The last one-shot read would restore the SD state it saw before duty cycling
+            if (mOneShotCount != 0) {
+                throw new IllegalStateException("duty cycle while a one-shot read is running");
+            }
+        }
+        mDutyCycleThread = new DutyCycleThread(periodMs, listener);
+        mDutyCycleThread.start();
+    }
+
+    /**
+     * Stop duty-cycled sampling and wait for the thread to finish. The sensor stays in
+     * shutdown.
+     */
+    public synchronized void stopDutyCycle() {
+        DutyCycleThread thread = mDutyCycleThread;
+        if (thread == null) {
+            return;
+        }
+        mDutyCycleThread = null;
+        thread.quit();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Enable the ACK signal. The sensor pulls the ACK line low when the UV data crosses the
+     * threshold; the listener is then called and the alert is cleared with a read of the Alert
+     * Response Address ({@link #I2C_ADDRESS_ARA}).
+     * @param ackPin GPIO pin name the ACK line is connected to.
+     * @param threshold {@link #ACK_THD_102} or {@link #ACK_THD_145} steps.
+     * @param listener listener for the alert.
+     * @param handler handler the listener is called on, or null for the main looper.
+     * @throws IOException
+     */
+    public void enableAck(String ackPin, @AckThreshold int threshold, AckListener listener,
+                          Handler handler) throws IOException {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (mAckGpio != null || mDeviceAra != null) {
+            disableAck();
+        }
+        PeripheralManagerService pioService = new PeripheralManagerService();
+        try {
+            mDeviceAra = pioService.openI2cDevice(mBus, I2C_ADDRESS_ARA);
+            mAckListener = listener;
+
+            mAckGpio = pioService.openGpio(ackPin);
+            mAckGpio.setDirection(Gpio.DIRECTION_IN);
+            mAckGpio.setActiveType(Gpio.ACTIVE_HIGH);
+            mAckGpio.setEdgeTriggerType(Gpio.EDGE_FALLING);     // ACK is active low
+            if (handler != null) {
+                mAckGpio.registerGpioCallback(mAckCallback, handler);
+            } else {
+                mAckGpio.registerGpioCallback(mAckCallback);
+            }
+
+            synchronized (mBuffer) {
+                // Clear a pending alert, otherwise the sensor does not answer on 0x38
+                ClearAck();
+                WriteCommand((mCommand & ~(VEML6070_ACK | VEML6070_ACK_THD)) | VEML6070_ACK
+                        | (threshold & VEML6070_ACK_THD));
+            }
+        } catch (IOException|RuntimeException e) {
+            try {
+                disableAck();
+            } catch (IOException|RuntimeException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Disable the ACK signal and release the ACK pin.
+     * @throws IOException
+     */
+    public void disableAck() throws IOException {
+        try {
+            synchronized (mBuffer) {
+                if (mDevice != null && mDeviceAra != null) {
+                    ClearAck();
+                    WriteCommand(mCommand & ~(VEML6070_ACK | VEML6070_ACK_THD));
+                }
+            }
+        } finally {
+            try {
+                if (mAckGpio != null) {
+                    mAckGpio.unregisterGpioCallback(mAckCallback);
+                    mAckGpio.close();
+                }
+            } finally {
+                mAckGpio = null;
+                mAckListener = null;
+                if (mDeviceAra != null) {
+                    try {
+                        mDeviceAra.close();
+                    } finally {
+                        mDeviceAra = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private final GpioCallback mAckCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            AckListener listener = mAckListener;
+            if (listener == null) {
+                return false;
+            }
+            float uv;
+            try {
+                synchronized (mBuffer) {
+                    if (mDeviceAra == null) {
+                        return false;
+                    }
+                    ClearAck();
+                    uv = ReadUVData();
+                }
+            } catch (IOException|IllegalStateException e) {
+                Log.e(TAG, "ACK handling failed", e);
+                return true;
+            }
+            listener.onAck(Veml6070.this, uv);
+            return true;
+        }
+
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            Log.w(TAG, gpio + ": Error event " + error);
+        }
+    };
+
+    // Reading one byte from the Alert Response Address releases the ACK line.
+    // Callers must hold the mBuffer lock.
+    private void ClearAck() {
+        try {
+            mDeviceAra.read(mBuffer,1);
+        } catch (IOException e) {
+            // No alert pending: nobody answers on the ARA and the read is not acknowledged
+        }
+    }
+
+    // Integration time plus margin for the current setting
+    private long getIntegrationTimeMs() {
+        return (long) Math.ceil(getRefreshTimeMs() * INTEG_TIME_MARGIN) + 1;
+    }
+
+    // Nominal data refresh period, one integration time
+    private float getRefreshTimeMs() {
+        synchronized (mBuffer) {
+            float time = INTEG_TIME_1T_MS;
+            switch (integTime) {
+                case IT_1_2:
+                    time /= 2.0f;
+                    break;
+                case IT_2:
+                    time *= 2.0f;
+                    break;
+                case IT_4:
+                    time *= 4.0f;
+                    break;
+            }
+            return time;
+        }
+    }
+
+    /**
+     * Read the UV level, going to the bus only when the sensor can have refreshed its data,
+     * i.e. when one integration time has passed since the last bus read. In shutdown the data
+     * does not change and the last reading is returned.
+     * @return UVA level in uW/cm².
+     * @throws IOException
+     */
+    public float ReadUVDataCached() throws IOException {
+        synchronized (mBuffer) {
+            if (mCacheValid) {
+                long age = SystemClock.elapsedRealtimeNanos() - mCachedTimeNanos;
+                if ((mCommand & VEML6070_SD) != 0
+                        || age < (long) (getRefreshTimeMs() * 1000000.0f)) {
+                    return mCachedUV;
+                }
+            }
+            return ReadUVData();
+        }
+    }
+
+    /**
+     * Set the length of the rolling window for {@link #ReadUVIndex()}. Clears the window.
+     * @param windowMs window length in milliseconds.
+     */
+    public void setUVIndexWindow(long windowMs) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + windowMs);
+        }
+        // Enough entries for one bus reading per refresh at the shortest integration time
+        int capacity = (int) Math.ceil(windowMs / INTEG_TIME_MIN_MS) + 1;
+        synchronized (mBuffer) {
+            mWindowNanos = windowMs * 1000000L;
+            mWindowTimes = new long[capacity];
+            mWindowValues = new float[capacity];
+            mWindowHead = 0;
+            mWindowCount = 0;
+            mWindowSum = 0.0;
+        }
+    }
+
+    /**
+     * Returns the UV index averaged over the rolling window set by
+     * {@link #setUVIndexWindow(long)}, using {@link #ReadUVDataCached()} for new data. Without a
+     * window the current reading is converted.
+     * @return UV index.
+     * @throws IOException
+     */
+    public float ReadUVIndex() throws IOException {
+        synchronized (mBuffer) {
+            float uv = ReadUVDataCached();
+            if (mWindowTimes == null) {
+                return uv / UVA_PER_UV_INDEX;
+            }
+            EvictWindow(SystemClock.elapsedRealtimeNanos());
+            if (mWindowCount == 0) {
+                return uv / UVA_PER_UV_INDEX;
+            }
+            return (float) (mWindowSum / mWindowCount) / UVA_PER_UV_INDEX;
+        }
+    }
+
+    // Store a bus reading in the cache and the UV index window. Callers must hold mBuffer.
+    private void StoreReading(float uv) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        mCachedUV = uv;
+        mCachedTimeNanos = now;
+        mCacheValid = true;
+
+        if (mWindowTimes == null) {
+            return;
+        }
+        EvictWindow(now);
+        if (mWindowCount == mWindowTimes.length) {
+            // Full: drop the oldest entry
+            mWindowSum -= mWindowValues[mWindowHead];
+            mWindowHead = (mWindowHead + 1) % mWindowTimes.length;
+            mWindowCount--;
+        }
+        int tail = (mWindowHead + mWindowCount) % mWindowTimes.length;
+        mWindowTimes[tail] = now;
+        mWindowValues[tail] = uv;
+        mWindowSum += uv;
+        mWindowCount++;
+    }
+
+    // Drop entries older than the window. Callers must hold mBuffer.
+    private void EvictWindow(long now) {
+        while (mWindowCount > 0 && now - mWindowTimes[mWindowHead] > mWindowNanos) {
+            mWindowSum -= mWindowValues[mWindowHead];
+            mWindowHead = (mWindowHead + 1) % mWindowTimes.length;
+            mWindowCount--;
+        }
+        if (mWindowCount == 0) {
+            // Reset the running sum so rounding errors do not accumulate
+            mWindowSum = 0.0;
+        }
+    }
+
+    // A thread that stopped on its own after a read error no longer counts.
+    // Callers must hold the lock on this.
+    private boolean isDutyCycleRunning() {
+        return mDutyCycleThread != null && mDutyCycleThread.isAlive();
+    }
+
+    private class DutyCycleThread extends Thread {
+
+        private final long mPeriodMs;
+        private final UVListener mListener;
+        private volatile boolean mRunning = true;
+
+        DutyCycleThread(long periodMs, UVListener listener) {
+            super(TAG + "-dutycycle");
+            mPeriodMs = periodMs;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            long next = SystemClock.elapsedRealtime();
+            try {
+                setShutdown(true);
+                while (mRunning) {
+                    setShutdown(false);
+                    try {
+                        Thread.sleep(getIntegrationTimeMs());
+                        mListener.onUVData(Veml6070.this, ReadUVData());
+                    } finally {
+                        setShutdown(true);
+                    }
+
+                    // Fixed rate, the wake up and read time is part of the period
+                    next += mPeriodMs;
+                    long wait = next - SystemClock.elapsedRealtime();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    } else {
+                        next = SystemClock.elapsedRealtime();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // quit
+            } catch (IOException|IllegalStateException e) {
+                Log.e(TAG, "Duty cycle stopped", e);
+            }
+        }
+
+        public void quit() {
+            mRunning = false;
+            interrupt();
+        }
+    }
+
+    private void WriteCommand(int command) throws IOException {
+        if (mDevice == null) {
+            throw new IllegalStateException("I2C device is already closed");
+        }
+        mBuffer[0] = (byte) command;
+        mDevice.write(mBuffer,1);
+        if (((mCommand ^ command) >> VEML6070_IT_SHIFT & 0x3) != 0) {
+            // Counts from the old integration time are scaled differently
+            mCacheValid = false;
+        }
+        mCommand = command;
     }
 
     public float ReadUVData() throws IOException{
@@ -136,16 +642,38 @@ public class Veml6070 implements AutoCloseable {
             default:
                 UVVal=0.0f;
         }
+        synchronized (mBuffer) {
+            StoreReading(UVVal);
+        }
         return UVVal;
     }
 
+    // LSB and MSB are separate transactions on different addresses. Read the MSB before and
+    // after the LSB; if it did not change, LSB and MSB belong to the same integration. Throws
+    // rather than return a value that may be torn if the MSB never settles.
     private int ReadWordData() throws IOException {
-        int val;
-        byte[] buf = new byte[1];
-        mDevice.read(buf,1);
-        val=buf[0]&0x000000FF;
-        mDeviceMsb.read(buf,1);
-        val=val|((buf[0]<<8)&0x0000FF00);
-        return val;
+        int msb, lsb, msb2;
+        synchronized (mBuffer) {
+            if ((mDevice == null) || (mDeviceMsb == null)) {
+                throw new IllegalStateException("I2C device is already closed");
+            }
+            mDeviceMsb.read(mBuffer,1);
+            msb = mBuffer[0] & 0x000000FF;
+            for (int i = 0; ; i++) {
+                mDevice.read(mBuffer,1);
+                lsb = mBuffer[0] & 0x000000FF;
+                mDeviceMsb.read(mBuffer,1);
+                msb2 = mBuffer[0] & 0x000000FF;
+                if (msb2 == msb) {
+                    break;
+                }
+                if (i >= TORN_READ_RETRIES) {
+                    throw new IOException("UV data changed during every read attempt");
+                }
+                // Data was refreshed in between, retry with the new MSB
+                msb = msb2;
+            }
+            return lsb | (msb2 << 8);
+        }
     }
 }
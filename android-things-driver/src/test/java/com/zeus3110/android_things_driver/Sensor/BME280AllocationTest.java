@@ -0,0 +1,143 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the steady-state read paths that fill caller-owned holders do not allocate.
+ * The simulated I2C device does not allocate either, so every byte counted belongs to the driver.
+ */
+public class BME280AllocationTest {
+    private static final int WARMUP = 20000;
+    private static final int READS = 10000;
+
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    private final com.sun.management.ThreadMXBean mThreadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private FakeBme280 mFake;
+    private BME280 mBme280;
+    private final BME280.Sample mSample = new BME280.Sample();
+    private final float[] mValues = new float[4];
+    private float mSink;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        mFake = new FakeBme280();
+        mBme280 = new BME280(mFake.newI2cDevice());
+    }
+
+    @Test
+    public void readAll_fixed_valuesFromDevice() throws Exception {
+        mBme280.setCompensation(BME280.COMPENSATION_FIXED);
+        mBme280.readAll(mSample);
+        assertEquals(2508, mSample.temperatureFixed);
+        assertEquals(25767233, mSample.pressureFixed);
+        assertEquals(56317, mSample.humidityFixed);
+    }
+
+    @Test
+    public void readAll_doesNotAllocate() throws Exception {
+        for (int compensation : new int[]{BME280.COMPENSATION_FLOAT, BME280.COMPENSATION_FIXED}) {
+            mBme280.setCompensation(compensation);
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mBme280.readAll(mSample);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void readTemperatureAndPressure_doesNotAllocate() throws Exception {
+        for (int compensation : new int[]{BME280.COMPENSATION_FLOAT, BME280.COMPENSATION_FIXED}) {
+            mBme280.setCompensation(compensation);
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mBme280.readTemperatureAndPressure(mSample);
+                }
+            });
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mBme280.readTemperatureAndPressure(mValues, 1);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void readTemperatureAndHumidity_doesNotAllocate() throws Exception {
+        for (int compensation : new int[]{BME280.COMPENSATION_FLOAT, BME280.COMPENSATION_FIXED}) {
+            mBme280.setCompensation(compensation);
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mBme280.readTemperatureAndHumidity(mSample);
+                }
+            });
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mBme280.readTemperatureAndHumidity(mValues, 1);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void readSingleValue_doesNotAllocate() throws Exception {
+        for (int compensation : new int[]{BME280.COMPENSATION_FLOAT, BME280.COMPENSATION_FIXED}) {
+            mBme280.setCompensation(compensation);
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mSink += mBme280.readTemperature();
+                }
+            });
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mSink += mBme280.readPressure();
+                }
+            });
+            assertNoAllocation(new Op() {
+                @Override
+                public void run() throws IOException {
+                    mSink += mBme280.readHumidity();
+                }
+            });
+        }
+    }
+
+    private void assertNoAllocation(Op read) throws IOException {
+        int before = mFake.readCount;
+        read.run();
+        assertEquals("device reads per sample", 1, mFake.readCount - before);
+
+        measure(read, WARMUP);
+        long bytes = measure(read, READS);
+        assertEquals("bytes allocated in " + READS + " reads", 0, bytes);
+    }
+
+    private long measure(Op op, int count) throws IOException {
+        long threadId = Thread.currentThread().getId();
+        long start = mThreadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count; i++) {
+            op.run();
+        }
+        return mThreadBean.getThreadAllocatedBytes(threadId) - start;
+    }
+}
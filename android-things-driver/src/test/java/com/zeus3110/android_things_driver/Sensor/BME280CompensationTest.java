@@ -0,0 +1,100 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Golden vectors for the fixed-point compensation. The expected values come from the Bosch
+ * int32/int64 reference code compiled in C, with the datasheet calibration set.
+ */
+public class BME280CompensationTest {
+    static final int[] TEMP_CALIBRATION = {27504, 26435, -1000};
+    static final int[] PRESSURE_CALIBRATION =
+            {36477, -10685, 3024, 2855, 140, -7, 15500, -14600, 6000};
+    static final int[] HUMIDITY_CALIBRATION = {75, 362, 0, 313, 50, 30};
+
+    // raw T, raw P, raw H, t_fine, T [0.01 DegC], P [Q24.8 Pa], H [Q22.10 %RH]
+    private static final long[][] GOLDEN = {
+            {519888, 415148, 30000, 128422, 2508, 25767233, 56317},
+            {415000, 300000, 20000, -40477, -791, 29311547, 1746},
+            {600000, 500000, 40000, 256562, 5011, 22864454, 102400},  // humidity clamped to 100 %
+    };
+
+    @Test
+    public void fineTemperatureFixed_matchesReference() throws Exception {
+        for (long[] v : GOLDEN) {
+            assertEquals(v[3], BME280.compensateFineTemperatureFixed((int) v[0], TEMP_CALIBRATION));
+        }
+    }
+
+    @Test
+    public void pressureFixed_matchesReference() throws Exception {
+        for (long[] v : GOLDEN) {
+            assertEquals(v[5], BME280.compensatePressureFixed((int) v[1], (int) v[3],
+                    PRESSURE_CALIBRATION));
+        }
+    }
+
+    @Test
+    public void humidityFixed_matchesReference() throws Exception {
+        for (long[] v : GOLDEN) {
+            assertEquals(v[6], BME280.compensateHumidityFixed((int) v[2], (int) v[3],
+                    HUMIDITY_CALIBRATION));
+        }
+    }
+
+    @Test
+    public void compensateFixed_fillsSample() throws Exception {
+        BME280.Sample sample = new BME280.Sample();
+        for (long[] v : GOLDEN) {
+            BME280.compensate(BME280.COMPENSATION_FIXED, TEMP_CALIBRATION, PRESSURE_CALIBRATION,
+                    HUMIDITY_CALIBRATION, (int) v[0], (int) v[1], (int) v[2], sample);
+            assertEquals(v[3], sample.fineTemperature);
+            assertEquals(v[4], sample.temperatureFixed);
+            assertEquals(v[5], sample.pressureFixed);
+            assertEquals(v[6], sample.humidityFixed);
+            assertEquals(v[4] / 100.0, sample.temperature, 1e-4);
+            assertEquals(v[5] / 25600.0, sample.pressure, 1e-2);
+            assertEquals(v[6] / 1024.0, sample.humidity, 1e-3);
+        }
+    }
+
+    @Test
+    public void compensateFixed_skippedMeasurements() throws Exception {
+        BME280.Sample sample = new BME280.Sample();
+        BME280.compensate(BME280.COMPENSATION_FIXED, TEMP_CALIBRATION, PRESSURE_CALIBRATION,
+                HUMIDITY_CALIBRATION, 519888, BME280.BME280_SAMPLE_SKIPPED,
+                BME280.BME280_SAMPLE_SKIPPED, sample);
+        assertEquals(2508, sample.temperatureFixed);
+        assertEquals(0, sample.pressureFixed);
+        assertEquals(0, sample.humidityFixed);
+        assertTrue(Float.isNaN(sample.pressure));
+        assertTrue(Float.isNaN(sample.humidity));
+    }
+
+    @Test
+    public void compensateFloat_reusedSample_zeroesFixedPointFields() throws Exception {
+        BME280.Sample sample = new BME280.Sample();
+        BME280.compensate(BME280.COMPENSATION_FIXED, TEMP_CALIBRATION, PRESSURE_CALIBRATION,
+                HUMIDITY_CALIBRATION, 519888, 415148, 30000, sample);
+        BME280.compensate(BME280.COMPENSATION_FLOAT, TEMP_CALIBRATION, PRESSURE_CALIBRATION,
+                HUMIDITY_CALIBRATION, 519888, 415148, 30000, sample);
+        assertEquals(25.08, sample.temperature, 0.01);
+        assertEquals(0, sample.fineTemperature);
+        assertEquals(0, sample.temperatureFixed);
+        assertEquals(0, sample.pressureFixed);
+        assertEquals(0, sample.humidityFixed);
+    }
+
+    @Test
+    public void compensateFixed_rawSkipCodesAreValidReadings() throws Exception {
+        // 0x80000 and 0x8000 are what the sensor reports for a skipped measurement, but they
+        // are also valid raw readings and must be compensated as such.
+        BME280.Sample sample = new BME280.Sample();
+        BME280.compensate(BME280.COMPENSATION_FIXED, TEMP_CALIBRATION, PRESSURE_CALIBRATION,
+                HUMIDITY_CALIBRATION, 519888, 0x80000, 0x8000, sample);
+        assertFalse(Float.isNaN(sample.pressure));
+        assertFalse(Float.isNaN(sample.humidity));
+    }
+}
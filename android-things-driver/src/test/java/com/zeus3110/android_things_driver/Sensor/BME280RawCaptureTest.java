@@ -0,0 +1,87 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BME280RawCaptureTest {
+    private FakeBme280 mFake;
+    private BME280 mBme280;
+    private BME280RawCapture mCapture;
+
+    @Before
+    public void setUp() throws Exception {
+        mFake = new FakeBme280();
+        mBme280 = new BME280(mFake.newI2cDevice());
+        mCapture = new BME280RawCapture(mBme280, 16);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCapture.close();
+        mBme280.close();
+    }
+
+    private void captureOneFrame() throws InterruptedException {
+        mCapture.start(100);
+        for (int i = 0; i < 1000 && mCapture.getFrameCount() == 0; i++) {
+            Thread.sleep(1);
+        }
+        mCapture.stop();
+        assertTrue("no frame captured", mCapture.getFrameCount() > 0);
+    }
+
+    @Test
+    public void getSample_cachedFrame_restoresFixedPointFields() throws Exception {
+        mBme280.setCompensation(BME280.COMPENSATION_FIXED);
+        captureOneFrame();
+
+        BME280.Sample first = new BME280.Sample();
+        BME280.Sample cached = new BME280.Sample();
+        mCapture.getSample(0, first);
+        mCapture.getSample(0, cached);
+        assertEquals(128422, first.fineTemperature);
+        assertEquals(2508, first.temperatureFixed);
+        assertEquals(25767233, first.pressureFixed);
+        assertEquals(56317, first.humidityFixed);
+        assertEquals(first.fineTemperature, cached.fineTemperature);
+        assertEquals(first.temperatureFixed, cached.temperatureFixed);
+        assertEquals(first.pressureFixed, cached.pressureFixed);
+        assertEquals(first.humidityFixed, cached.humidityFixed);
+        assertEquals(first.temperature, cached.temperature, 0);
+        assertEquals(first.pressure, cached.pressure, 0);
+        assertEquals(first.humidity, cached.humidity, 0);
+    }
+
+    @Test
+    public void getSample_floatCompensation_zeroesFixedPointFields() throws Exception {
+        captureOneFrame();
+
+        BME280.Sample sample = new BME280.Sample();
+        sample.temperatureFixed = 1;
+        mCapture.getSample(0, sample);
+        assertEquals(25.08, sample.temperature, 0.01);
+        assertEquals(0, sample.temperatureFixed);
+        mCapture.getSample(0, sample);
+        assertEquals(0, sample.temperatureFixed);
+    }
+
+    @Test
+    public void start_afterCaptureFailed_restarts() throws Exception {
+        mFake.failReads = true;
+        mCapture.start(100);
+        boolean restarted = false;
+        for (int i = 0; i < 1000 && !restarted; i++) {
+            Thread.sleep(1);
+            try {
+                mCapture.start(100);
+                restarted = true;
+            } catch (IllegalStateException e) {
+                // The failed thread has not exited yet
+            }
+        }
+        assertTrue("capture could not be restarted", restarted);
+    }
+}
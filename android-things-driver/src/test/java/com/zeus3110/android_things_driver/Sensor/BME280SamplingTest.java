@@ -0,0 +1,116 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BME280SamplingTest {
+    private FakeBme280 mFake;
+    private BME280 mBme280;
+
+    @Before
+    public void setUp() throws Exception {
+        mFake = new FakeBme280();
+        mBme280 = new BME280(mFake.newI2cDevice());
+        mBme280.setStandbyTime(BME280.STANDBY_0_5_MS);
+        mBme280.setCompensation(BME280.COMPENSATION_FIXED);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBme280.stopSampling();
+        mBme280.close();
+    }
+
+    private void waitForSample(BME280.Sample sample) throws InterruptedException {
+        for (int i = 0; i < 1000 && mBme280.getLatestSample(sample) == 0; i++) {
+            Thread.sleep(1);
+        }
+        assertTrue("no background sample", mBme280.getLatestSample(sample) != 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setMode_forcedWhileSampling_throws() throws Exception {
+        mBme280.startSampling();
+        mBme280.setMode(BME280.MODE_FORCED);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void configure_sleepWhileSampling_throws() throws Exception {
+        mBme280.startSampling();
+        mBme280.configure(BME280.OVERSAMPLING_1X, BME280.OVERSAMPLING_1X,
+                BME280.OVERSAMPLING_1X, BME280.FILTER_OFF, BME280.STANDBY_0_5_MS,
+                BME280.MODE_SLEEP);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readForcedWhileSampling_throws() throws Exception {
+        mBme280.startSampling();
+        mBme280.readForced(new BME280.Sample());
+    }
+
+    @Test
+    public void configure_normalWhileSampling_keepsSampling() throws Exception {
+        mBme280.startSampling();
+        mBme280.configure(BME280.OVERSAMPLING_2X, BME280.OVERSAMPLING_2X,
+                BME280.OVERSAMPLING_2X, BME280.FILTER_OFF, BME280.STANDBY_0_5_MS,
+                BME280.MODE_NORMAL);
+        waitForSample(new BME280.Sample());
+    }
+
+    @Test
+    public void snapshot_includesFixedPointFields() throws Exception {
+        BME280.Sample sample = new BME280.Sample();
+        mBme280.startSampling();
+        waitForSample(sample);
+        assertEquals(128422, sample.fineTemperature);
+        assertEquals(2508, sample.temperatureFixed);
+        assertEquals(25767233, sample.pressureFixed);
+        assertEquals(56317, sample.humidityFixed);
+
+        sample = new BME280.Sample();
+        mBme280.readAll(sample);
+        assertEquals(25767233, sample.pressureFixed);
+        assertEquals(56317, sample.humidityFixed);
+
+        mBme280.readTemperatureAndPressure(sample);
+        assertEquals(2508, sample.temperatureFixed);
+        assertEquals(25767233, sample.pressureFixed);
+        assertEquals(0, sample.humidityFixed);
+    }
+
+    @Test
+    public void snapshot_floatCompensation_zeroesFixedPointFields() throws Exception {
+        mBme280.setCompensation(BME280.COMPENSATION_FLOAT);
+        BME280.Sample sample = new BME280.Sample();
+        sample.temperatureFixed = 1;
+        sample.pressureFixed = 1;
+        mBme280.startSampling();
+        waitForSample(sample);
+        assertEquals(25.08, sample.temperature, 0.01);
+        assertEquals(0, sample.temperatureFixed);
+        assertEquals(0, sample.pressureFixed);
+    }
+
+    @Test
+    public void readForced_afterSampling_readsTheBus() throws Exception {
+        BME280.Sample sample = new BME280.Sample();
+        mBme280.startSampling();
+        waitForSample(sample);
+        mBme280.stopSampling();
+
+        mFake.setRawSample(415000, 300000, 20000);
+        mBme280.readForced(sample);
+        assertEquals(-791, sample.temperatureFixed);
+        assertEquals(0b01, mFake.registers[FakeBme280.REG_CTRL] & 0b11);   // forced mode
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readAll_afterForced_throws() throws Exception {
+        mBme280.readForced(new BME280.Sample());
+        // The data registers still hold the forced result, which is not a new reading
+        mBme280.readAll(new BME280.Sample());
+    }
+}
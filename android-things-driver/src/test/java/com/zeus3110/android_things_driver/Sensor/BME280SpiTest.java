@@ -0,0 +1,82 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BME280SpiTest {
+    private FakeBme280 mFake;
+    private BME280 mBme280;
+
+    @Before
+    public void setUp() throws Exception {
+        mFake = new FakeBme280();
+        mBme280 = new BME280(mFake.newSpiDevice());
+    }
+
+    @Test
+    public void connect_readsIdAndCalibration() throws Exception {
+        assertEquals(FakeBme280.CHIP_ID_BME280, mBme280.getChipId());
+        assertTrue(mBme280.hasHumidity());
+        BME280.Calibration calibration = mBme280.getCalibration();
+        assertArrayEquals(BME280CompensationTest.TEMP_CALIBRATION, calibration.getTemperature());
+        assertArrayEquals(BME280CompensationTest.PRESSURE_CALIBRATION, calibration.getPressure());
+        assertArrayEquals(BME280CompensationTest.HUMIDITY_CALIBRATION, calibration.getHumidity());
+    }
+
+    @Test
+    public void readAll_isOneBurstWithReadBit() throws Exception {
+        int reads = mFake.readCount;
+        mBme280.readAll(new BME280.Sample());
+        assertEquals(1, mFake.readCount - reads);
+        // press_msb (0xF7) to hum_lsb (0xFE) after the control byte
+        assertEquals(FakeBme280.REG_PRESS | 0x80, mFake.lastSpiControl);
+        assertEquals(1 + BME280.BME280_DATA_LENGTH, mFake.lastSpiLength);
+    }
+
+    @Test
+    public void readAll_decodesBurst() throws Exception {
+        BME280.Sample sample = new BME280.Sample();
+        mBme280.setCompensation(BME280.COMPENSATION_FIXED);
+        mBme280.readAll(sample);
+        assertEquals(2508, sample.temperatureFixed);
+        assertEquals(25767233, sample.pressureFixed);
+        assertEquals(56317, sample.humidityFixed);
+
+        mFake.setRawSample(415000, 300000, 20000);
+        mBme280.readAll(sample);
+        assertEquals(-791, sample.temperatureFixed);
+        assertEquals(29311547, sample.pressureFixed);
+        assertEquals(1746, sample.humidityFixed);
+
+        mBme280.setCompensation(BME280.COMPENSATION_FLOAT);
+        mFake.setRawSample(519888, 415148, 30000);
+        mBme280.readAll(sample);
+        assertEquals(25.08, sample.temperature, 0.01);
+        assertEquals(1006.53, sample.pressure, 0.01);
+        assertEquals(54.997, sample.humidity, 0.01);
+    }
+
+    @Test
+    public void write_clearsReadBit() throws Exception {
+        mBme280.setMode(BME280.MODE_SLEEP);
+        // ctrl_meas (0xF4) is addressed as 0x74 for a write
+        assertEquals(FakeBme280.REG_CTRL & 0x7f, mFake.lastSpiControl);
+        assertEquals(0, mFake.registers[FakeBme280.REG_CTRL] & 0b11);
+    }
+
+    @Test
+    public void configure_writesAllRegistersInOneTransaction() throws Exception {
+        int writes = mFake.writeCount;
+        mBme280.configure(BME280.OVERSAMPLING_2X, BME280.OVERSAMPLING_4X,
+                BME280.OVERSAMPLING_8X, BME280.FILTER_4, BME280.STANDBY_125_MS,
+                BME280.MODE_NORMAL);
+        assertEquals(1, mFake.writeCount - writes);
+        assertEquals(BME280.OVERSAMPLING_8X, mFake.registers[FakeBme280.REG_CTRL_HUMID]);
+        assertEquals((BME280.STANDBY_125_MS << 5) | (BME280.FILTER_4 << 2),
+                mFake.registers[FakeBme280.REG_CONFIG] & 0xff);
+        assertEquals((BME280.OVERSAMPLING_2X << 5) | (BME280.OVERSAMPLING_4X << 2) | 0b11,
+                mFake.registers[FakeBme280.REG_CTRL] & 0xff);
+    }
+}
@@ -0,0 +1,126 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DSM501AOccupancyWindowTest {
+    private static final long MS = 1000000L;
+
+    private DSM501A.OccupancyWindow newWindow(long now) {
+        DSM501A.OccupancyWindow window = new DSM501A.OccupancyWindow();
+        window.reset(now, false);
+        return window;
+    }
+
+    @Test
+    public void update_beforeWindowFilled_usesCapturedSpan() throws Exception {
+        DSM501A.OccupancyWindow window = newWindow(0);
+        window.onEdge(100 * MS, true);
+        window.onEdge(300 * MS, false);
+        window.onEdge(900 * MS, true);
+        window.update(1000 * MS, 30000 * MS);
+        assertEquals(1000 * MS, window.spanNanos);
+        assertEquals(300 * MS, window.occupiedNanos);      // 200ms pulse + 100ms running
+    }
+
+    @Test
+    public void update_slidingWindow_clipsOldestPulse() throws Exception {
+        DSM501A.OccupancyWindow window = newWindow(0);
+        window.onEdge(100 * MS, true);
+        window.onEdge(600 * MS, false);
+        window.onEdge(700 * MS, true);
+        window.onEdge(800 * MS, false);
+        window.update(1400 * MS, 1000 * MS);
+        assertEquals(1000 * MS, window.spanNanos);
+        assertEquals(300 * MS, window.occupiedNanos);      // 400..600 and 700..800
+
+        window.update(1750 * MS, 1000 * MS);
+        assertEquals(1000 * MS, window.spanNanos);
+        assertEquals(50 * MS, window.occupiedNanos);       // 750..800
+    }
+
+    @Test
+    public void update_windowShrunk_appliesAtOnce() throws Exception {
+        DSM501A.OccupancyWindow window = newWindow(0);
+        window.onEdge(1000 * MS, true);
+        window.onEdge(3000 * MS, false);
+        window.update(5000 * MS, 30000 * MS);
+        assertEquals(5000 * MS, window.spanNanos);
+        assertEquals(2000 * MS, window.occupiedNanos);
+
+        window.update(5000 * MS, 2500 * MS);
+        assertEquals(2500 * MS, window.spanNanos);
+        assertEquals(500 * MS, window.occupiedNanos);      // 2500..3000
+    }
+
+    @Test
+    public void update_windowGrown_spanGrowsBackGradually() throws Exception {
+        DSM501A.OccupancyWindow window = newWindow(0);
+        window.onEdge(1000 * MS, true);
+        window.onEdge(2000 * MS, false);
+        window.update(10000 * MS, 2000 * MS);
+        assertEquals(2000 * MS, window.spanNanos);
+        assertEquals(0, window.occupiedNanos);
+
+        // The pulse at 1000..2000 was dropped; only 8000ms onwards is still known
+        window.onEdge(10500 * MS, true);
+        window.update(11000 * MS, 30000 * MS);
+        assertEquals(3000 * MS, window.spanNanos);
+        assertEquals(500 * MS, window.occupiedNanos);
+
+        window.onEdge(12000 * MS, false);
+        window.update(20000 * MS, 30000 * MS);
+        assertEquals(12000 * MS, window.spanNanos);
+        assertEquals(1500 * MS, window.occupiedNanos);
+
+        window.update(40000 * MS, 30000 * MS);
+        assertEquals(30000 * MS, window.spanNanos);
+        assertEquals(1500 * MS, window.occupiedNanos);
+    }
+
+    @Test
+    public void update_randomEdges_matchesBruteForce() throws Exception {
+        Random random = new Random(22);
+        long[] windows = {500 * MS, 2000 * MS, 7000 * MS};
+        long now = 0;
+        boolean signal = false;
+        DSM501A.OccupancyWindow window = newWindow(now);
+        // Level changes, starting with the initial level at reset
+        List<long[]> levels = new ArrayList<>();
+        levels.add(new long[]{now, 0});
+        long dataStart = now;
+        long windowNanos = windows[0];
+
+        for (int step = 0; step < 5000; step++) {
+            now += 1 + random.nextInt(50) * MS;
+            int action = random.nextInt(100);
+            if (action < 2) {
+                windowNanos = windows[random.nextInt(windows.length)];
+            } else if (action < 70) {
+                signal = !signal;
+                window.onEdge(now, signal);
+                levels.add(new long[]{now, signal ? 1 : 0});
+                continue;
+            }
+            window.update(now, windowNanos);
+
+            // Every update drops what is older than its window, so that is never known again
+            dataStart = Math.max(dataStart, now - windowNanos);
+            long expectedOccupied = 0;
+            for (int i = 0; i < levels.size(); i++) {
+                long start = Math.max(levels.get(i)[0], dataStart);
+                long end = (i + 1 < levels.size()) ? levels.get(i + 1)[0] : now;
+                if (levels.get(i)[1] != 0 && end > start) {
+                    expectedOccupied += end - start;
+                }
+            }
+            assertEquals("span at step " + step, now - dataStart, window.spanNanos);
+            assertEquals("occupied at step " + step, expectedOccupied, window.occupiedNanos);
+        }
+    }
+}
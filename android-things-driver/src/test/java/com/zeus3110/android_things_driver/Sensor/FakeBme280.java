@@ -0,0 +1,227 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.SpiDevice;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Register map of a simulated BME280 with the datasheet calibration set, in normal mode with
+ * 1x oversampling for all measurements. It can be reached through a fake I2C device, which does
+ * not allocate so that the allocation tests can count the driver's allocations alone, or
+ * through a mocked SPI device.
+ */
+class FakeBme280 {
+    static final int CHIP_ID_BME280 = 0x60;
+
+    static final int REG_CALIB_BLOCK_1 = 0x88;
+    static final int REG_CALIB_BLOCK_2 = 0xE1;
+    static final int REG_ID = 0xD0;
+    static final int REG_CTRL_HUMID = 0xF2;
+    static final int REG_CTRL = 0xF4;
+    static final int REG_CONFIG = 0xF5;
+    static final int REG_PRESS = 0xF7;
+
+    /** Register contents, indexed by address. */
+    final byte[] registers = new byte[256];
+
+    // Statistics of the device calls
+    int readCount;
+    int writeCount;
+    /** Makes reads fail with an IOException, as on a bus error. */
+    volatile boolean failReads;
+    // Control byte (address and R/W bit) of the last SPI transaction, and its length
+    int lastSpiControl;
+    int lastSpiLength;
+
+    FakeBme280() {
+        registers[REG_ID] = (byte) CHIP_ID_BME280;
+        int[] t = BME280CompensationTest.TEMP_CALIBRATION;
+        int[] p = BME280CompensationTest.PRESSURE_CALIBRATION;
+        int[] h = BME280CompensationTest.HUMIDITY_CALIBRATION;
+        for (int i = 0; i < t.length; i++) {
+            setWord(REG_CALIB_BLOCK_1 + 2 * i, t[i]);
+        }
+        for (int i = 0; i < p.length; i++) {
+            setWord(REG_CALIB_BLOCK_1 + 6 + 2 * i, p[i]);
+        }
+        registers[0xA1] = (byte) h[0];
+        setWord(REG_CALIB_BLOCK_2, h[1]);
+        registers[0xE3] = (byte) h[2];
+        // dig_H4 and dig_H5 are 12 bit values sharing the nibbles of 0xE5
+        registers[0xE4] = (byte) (h[3] >> 4);
+        registers[0xE5] = (byte) ((h[3] & 0x0f) | ((h[4] & 0x0f) << 4));
+        registers[0xE6] = (byte) (h[4] >> 4);
+        registers[0xE7] = (byte) h[5];
+
+        registers[REG_CTRL_HUMID] = 0b001;                 // osrs_h 1x
+        registers[REG_CTRL] = (byte) 0b001_001_11;         // osrs_t 1x, osrs_p 1x, normal mode
+        setRawSample(519888, 415148, 30000);
+    }
+
+    private void setWord(int reg, int value) {
+        registers[reg] = (byte) value;
+        registers[reg + 1] = (byte) (value >> 8);
+    }
+
+    /**
+     * Sets the measurement data registers (0xF7 to 0xFE).
+     */
+    void setRawSample(int rawTemp, int rawPressure, int rawHumidity) {
+        setSample20bit(REG_PRESS, rawPressure);
+        setSample20bit(REG_PRESS + 3, rawTemp);
+        registers[REG_PRESS + 6] = (byte) (rawHumidity >> 8);
+        registers[REG_PRESS + 7] = (byte) rawHumidity;
+    }
+
+    private void setSample20bit(int reg, int value) {
+        registers[reg] = (byte) (value >> 12);
+        registers[reg + 1] = (byte) (value >> 4);
+        registers[reg + 2] = (byte) (value << 4);
+    }
+
+    byte read(int reg) throws IOException {
+        checkRead();
+        return registers[reg];
+    }
+
+    void read(int reg, byte[] buffer, int offset, int length) throws IOException {
+        checkRead();
+        System.arraycopy(registers, reg, buffer, offset, length);
+    }
+
+    private void checkRead() throws IOException {
+        if (failReads) {
+            throw new IOException("simulated bus error");
+        }
+        readCount++;
+    }
+
+    /**
+     * Writes register address and data pairs.
+     */
+    void write(byte[] pairs, int offset, int length) {
+        writeCount++;
+        for (int i = offset; i < offset + length; i += 2) {
+            registers[pairs[i] & 0xff] = pairs[i + 1];
+        }
+    }
+
+    /**
+     * SPI read: the first byte is the register address with bit 7 set, the chip shifts out the
+     * auto-incremented registers while the following bytes are clocked.
+     */
+    void spiTransfer(byte[] tx, byte[] rx, int length) throws IOException {
+        lastSpiControl = tx[0] & 0xff;
+        lastSpiLength = length;
+        if ((tx[0] & 0x80) == 0) {
+            throw new IllegalArgumentException("SPI read without the read bit");
+        }
+        rx[0] = 0;
+        // In SPI mode bit 7 of the address is replaced by the R/W bit
+        read((tx[0] & 0x7f) | 0x80, rx, 1, length - 1);
+    }
+
+    /**
+     * SPI write: control byte with bit 7 cleared and data byte pairs.
+     */
+    void spiWrite(byte[] pairs, int length) {
+        lastSpiControl = pairs[0] & 0xff;
+        lastSpiLength = length;
+        byte[] mapped = new byte[length];
+        for (int i = 0; i < length; i += 2) {
+            if ((pairs[i] & 0x80) != 0) {
+                throw new IllegalArgumentException("SPI write with the read bit");
+            }
+            mapped[i] = (byte) (pairs[i] | 0x80);
+            mapped[i + 1] = pairs[i + 1];
+        }
+        write(mapped, 0, length);
+    }
+
+    /**
+     * Returns an I2C device backed by this register map.
+     */
+    I2cDevice newI2cDevice() {
+        return new I2cDevice() {
+            @Override
+            public byte readRegByte(int reg) throws IOException {
+                return FakeBme280.this.read(reg);
+            }
+
+            @Override
+            public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+                FakeBme280.this.read(reg, buffer, 0, length);
+            }
+
+            @Override
+            public void write(byte[] buffer, int length) throws IOException {
+                FakeBme280.this.write(buffer, 0, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+
+            @Override
+            public short readRegWord(int reg) throws IOException {
+                throw new UnsupportedOperationException("readRegWord");
+            }
+
+            @Override
+            public void writeRegByte(int reg, byte data) throws IOException {
+                throw new UnsupportedOperationException("writeRegByte");
+            }
+
+            @Override
+            public void writeRegWord(int reg, short data) throws IOException {
+                throw new UnsupportedOperationException("writeRegWord");
+            }
+
+            @Override
+            public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+                throw new UnsupportedOperationException("writeRegBuffer");
+            }
+
+            @Override
+            public void read(byte[] buffer, int length) throws IOException {
+                throw new UnsupportedOperationException("read");
+            }
+        };
+    }
+
+    /**
+     * Returns a 4-wire SPI device backed by this register map.
+     */
+    SpiDevice newSpiDevice() {
+        return mock(SpiDevice.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                switch (invocation.getMethod().getName()) {
+                    case "transfer":
+                        spiTransfer((byte[]) args[0], (byte[]) args[1], (Integer) args[2]);
+                        return null;
+                    case "write":
+                        spiWrite((byte[]) args[0], (Integer) args[1]);
+                        return null;
+                    case "setMode":
+                    case "setFrequency":
+                    case "setBitsPerWord":
+                    case "setBitJustification":
+                    case "close":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(
+                                invocation.getMethod().getName());
+                }
+            }
+        }));
+    }
+}
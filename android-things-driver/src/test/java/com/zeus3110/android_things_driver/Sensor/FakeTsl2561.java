@@ -0,0 +1,102 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * Register map of a simulated TSL2561 behind a fake I2C device. Every command byte sets the
+ * register pointer from its low nibble; reads return the registers from the pointer on.
+ */
+class FakeTsl2561 {
+    static final int REG_CONTROL = 0x00;
+    static final int REG_TIMING = 0x01;
+    static final int REG_DATA0 = 0x0C;
+
+    private static final int CMD_CLEAR = 0x40;
+
+    /** Register contents, indexed by address. */
+    final byte[] registers = new byte[16];
+
+    private int mPointer;
+
+    /**
+     * Sets the ADC channel registers.
+     */
+    void setChannels(int ch0, int ch1) {
+        registers[REG_DATA0] = (byte) ch0;
+        registers[REG_DATA0 + 1] = (byte) (ch0 >> 8);
+        registers[REG_DATA0 + 2] = (byte) ch1;
+        registers[REG_DATA0 + 3] = (byte) (ch1 >> 8);
+    }
+
+    int timing() {
+        return registers[REG_TIMING] & 0xff;
+    }
+
+    private void command(int cmd) {
+        if ((cmd & 0x80) == 0) {
+            throw new IllegalArgumentException("write without the command bit");
+        }
+        mPointer = cmd & 0x0f;
+    }
+
+    /**
+     * Returns an I2C device backed by this register map.
+     */
+    I2cDevice newI2cDevice() {
+        return new I2cDevice() {
+            @Override
+            public void write(byte[] buffer, int length) throws IOException {
+                command(buffer[0] & 0xff);
+                if ((buffer[0] & CMD_CLEAR) != 0) {
+                    return;
+                }
+                for (int i = 1; i < length; i++) {
+                    registers[mPointer + i - 1] = buffer[i];
+                }
+            }
+
+            @Override
+            public void read(byte[] buffer, int length) throws IOException {
+                System.arraycopy(registers, mPointer, buffer, 0, length);
+            }
+
+            @Override
+            public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+                command(reg);
+                read(buffer, length);
+            }
+
+            @Override
+            public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+                command(reg);
+                System.arraycopy(buffer, 0, registers, mPointer, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+
+            @Override
+            public byte readRegByte(int reg) throws IOException {
+                throw new UnsupportedOperationException("readRegByte");
+            }
+
+            @Override
+            public short readRegWord(int reg) throws IOException {
+                throw new UnsupportedOperationException("readRegWord");
+            }
+
+            @Override
+            public void writeRegByte(int reg, byte data) throws IOException {
+                throw new UnsupportedOperationException("writeRegByte");
+            }
+
+            @Override
+            public void writeRegWord(int reg, short data) throws IOException {
+                throw new UnsupportedOperationException("writeRegWord");
+            }
+        };
+    }
+}
@@ -0,0 +1,157 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the fixed point lux engine against the floating point datasheet formulas. The integer
+ * algorithm approximates the ratio^1.4 term of the first segment with four linear segments and
+ * rounds the coefficients to 2^-14, which matters where the two channel terms nearly cancel.
+ */
+public class TSL2561LuxTest {
+    private static final int[] GAINS = {TSL2561.TIMING_GAIN_1, TSL2561.TIMING_GAIN_16};
+    private static final int[] TIMES = {
+            TSL2561.TIMING_TIME_13R7, TSL2561.TIMING_TIME_101, TSL2561.TIMING_TIME_402};
+    // Channel 0 counts well below full scale for each integration time
+    private static final int[] CH0 = {3000, 22000, 40000};
+    // CH1/CH0 ratios in every segment of both packages, away from the breakpoints
+    private static final double[] RATIOS = {
+            0.0, 0.06, 0.19, 0.31, 0.44, 0.56, 0.62, 0.72, 1.0, 1.2, 1.5};
+    // Relative tolerance for the linear approximation of ratio^1.4
+    private static final double LUX_TOLERANCE = 0.025;
+    // Half an LSB of a fixed point coefficient, per scaled count of each channel
+    private static final double COEFFICIENT_ROUNDING = 0.5 / (1 << 14);
+
+    private FakeTsl2561 mFake;
+    private TSL2561 mSensor;
+
+    @Before
+    public void setUp() throws Exception {
+        mFake = new FakeTsl2561();
+        mSensor = new TSL2561(mFake.newI2cDevice());
+    }
+
+    // Datasheet floating point formula for the T, FN and CL packages, at 402ms and gain x1
+    static double luxT(double ch0, double ch1) {
+        double ratio = ch0 == 0 ? 0 : ch1 / ch0;
+        if (ratio <= 0.50) {
+            return 0.0304 * ch0 - 0.062 * ch0 * Math.pow(ratio, 1.4);
+        } else if (ratio <= 0.61) {
+            return 0.0224 * ch0 - 0.031 * ch1;
+        } else if (ratio <= 0.80) {
+            return 0.0128 * ch0 - 0.0153 * ch1;
+        } else if (ratio <= 1.30) {
+            return 0.00146 * ch0 - 0.00112 * ch1;
+        }
+        return 0;
+    }
+
+    // Datasheet floating point formula for the CS package, at 402ms and gain x1
+    static double luxCs(double ch0, double ch1) {
+        double ratio = ch0 == 0 ? 0 : ch1 / ch0;
+        if (ratio <= 0.52) {
+            return 0.0315 * ch0 - 0.0593 * ch0 * Math.pow(ratio, 1.4);
+        } else if (ratio <= 0.65) {
+            return 0.0229 * ch0 - 0.0291 * ch1;
+        } else if (ratio <= 0.80) {
+            return 0.0157 * ch0 - 0.0180 * ch1;
+        } else if (ratio <= 1.30) {
+            return 0.00338 * ch0 - 0.00260 * ch1;
+        }
+        return 0;
+    }
+
+    // Counts to 402ms and gain x1 as in the datasheet: 322/11 and 322/81 for the short times
+    private static double scale(int gain, int time) {
+        double scale;
+        switch (time) {
+            case TSL2561.TIMING_TIME_13R7:
+                scale = 322.0 / 11;
+                break;
+            case TSL2561.TIMING_TIME_101:
+                scale = 322.0 / 81;
+                break;
+            default:
+                scale = 1.0;
+                break;
+        }
+        return gain == TSL2561.TIMING_GAIN_16 ? scale / 16 : scale;
+    }
+
+    // ch0 and ch1 are scaled to 402ms and gain x1
+    private static void assertLux(String message, double expected, float actual,
+                                  double ch0, double ch1) {
+        double tolerance = Math.abs(expected) * LUX_TOLERANCE
+                + (ch0 + ch1) * COEFFICIENT_ROUNDING;
+        assertEquals(message, expected, actual, tolerance);
+    }
+
+    @Test
+    public void calculateLux_datasheetExample_matchesHandComputed() throws Exception {
+        // 402ms x16: channel scale 1, ratio (100 << 10) / 1000 = 102, rounded 51 <= K1T,
+        // lux = 1000 * B1T - 100 * M1T = 453400 at 2^14 and gain x16
+        float lux = TSL2561.CalculateLux(TSL2561.TIMING_GAIN_16, TSL2561.TIMING_TIME_402,
+                1000, 100, TSL2561.PACKAGE_T);
+        assertEquals(453400.0 / (1 << 18), lux, 0.0);
+    }
+
+    @Test
+    public void calculateLux_packageT_matchesDatasheetFormula() throws Exception {
+        for (int gain : GAINS) {
+            for (int t = 0; t < TIMES.length; t++) {
+                double scale = scale(gain, TIMES[t]);
+                for (double ratio : RATIOS) {
+                    int ch0 = CH0[t];
+                    int ch1 = (int) Math.round(ch0 * ratio);
+                    float lux = TSL2561.CalculateLux(gain, TIMES[t], ch0, ch1, TSL2561.PACKAGE_T);
+                    assertLux("T gain " + gain + " time " + TIMES[t] + " ratio " + ratio,
+                            luxT(ch0 * scale, ch1 * scale), lux, ch0 * scale, ch1 * scale);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void calculateLux_packageCs_matchesDatasheetFormula() throws Exception {
+        for (int gain : GAINS) {
+            for (int t = 0; t < TIMES.length; t++) {
+                double scale = scale(gain, TIMES[t]);
+                for (double ratio : RATIOS) {
+                    int ch0 = CH0[t];
+                    int ch1 = (int) Math.round(ch0 * ratio);
+                    float lux = TSL2561.CalculateLux(gain, TIMES[t], ch0, ch1, TSL2561.PACKAGE_CS);
+                    assertLux("CS gain " + gain + " time " + TIMES[t] + " ratio " + ratio,
+                            luxCs(ch0 * scale, ch1 * scale), lux, ch0 * scale, ch1 * scale);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void getLuxData_integerEngine_matchesFloatEngine() throws Exception {
+        for (int gain : GAINS) {
+            for (int t = 0; t < TIMES.length; t++) {
+                double scale = scale(gain, TIMES[t]);
+                mSensor.SetGainAndIntegtime(gain, TIMES[t]);
+                for (double ratio : RATIOS) {
+                    int ch0 = CH0[t];
+                    int ch1 = (int) Math.round(ch0 * ratio);
+                    mFake.setChannels(ch0, ch1);
+
+                    mSensor.SetLuxEngine(TSL2561.LUX_ENGINE_FLOAT, TSL2561.PACKAGE_T);
+                    float floatLux = mSensor.GetLuxData();
+                    mSensor.SetLuxEngine(TSL2561.LUX_ENGINE_INTEGER, TSL2561.PACKAGE_T);
+                    float integerLux = mSensor.GetLuxData();
+
+                    String message = "gain " + gain + " time " + TIMES[t] + " ratio " + ratio;
+                    assertLux(message, floatLux, integerLux, ch0 * scale, ch1 * scale);
+                    assertEquals(message,
+                            TSL2561.CalculateLux(gain, TIMES[t], ch0, ch1, TSL2561.PACKAGE_T),
+                            integerLux, 0.0);
+                }
+            }
+        }
+    }
+}
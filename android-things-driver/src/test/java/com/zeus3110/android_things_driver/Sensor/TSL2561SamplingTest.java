@@ -0,0 +1,43 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TSL2561SamplingTest {
+    private TSL2561 mSensor;
+
+    private static final TSL2561.LuxListener LISTENER = new TSL2561.LuxListener() {
+        @Override
+        public void onLuxData(TSL2561 sensor, float lux, long timestamp) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mSensor = new TSL2561(new FakeTsl2561().newI2cDevice());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSensor.close();
+    }
+
+    @Test
+    public void startSampling_autoRangeEnabled_throws() throws Exception {
+        // 13.7ms x1 is on the auto range ladder, so enabling it does not switch
+        mSensor.SetGainAndIntegtime(TSL2561.TIMING_GAIN_1, TSL2561.TIMING_TIME_13R7);
+        mSensor.SetAutoRange(true);
+        try {
+            mSensor.StartSampling(LISTENER);
+            fail("sampling started with auto range enabled");
+        } catch (IllegalStateException expected) {
+        }
+
+        mSensor.SetAutoRange(false);
+        mSensor.StartSampling(LISTENER);
+        mSensor.StopSampling();
+    }
+}
@@ -0,0 +1,50 @@
+package com.zeus3110.android_things_driver.Sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TSL2561SaturationTest {
+    private FakeTsl2561 mFake;
+    private TSL2561 mSensor;
+
+    @Before
+    public void setUp() throws Exception {
+        mFake = new FakeTsl2561();
+        mSensor = new TSL2561(mFake.newI2cDevice());
+    }
+
+    @Test
+    public void getLuxData_autoRangeSaturatedAtLeastSensitive_returnsInfinity() throws Exception {
+        // 13.7ms x1 is on the auto range ladder, so enabling it does not switch
+        mSensor.SetGainAndIntegtime(TSL2561.TIMING_GAIN_1, TSL2561.TIMING_TIME_13R7);
+        mSensor.SetAutoRange(true);
+        mFake.setChannels(5047, 1000);
+        assertEquals(Float.POSITIVE_INFINITY, mSensor.GetLuxData(), 0.0f);
+        assertEquals(TSL2561.TIMING_GAIN_1 | TSL2561.TIMING_TIME_13R7, mFake.timing());
+    }
+
+    @Test
+    public void getLuxData_autoRangeBelowFullScale_returnsLux() throws Exception {
+        mSensor.SetGainAndIntegtime(TSL2561.TIMING_GAIN_1, TSL2561.TIMING_TIME_13R7);
+        mSensor.SetAutoRange(true);
+        mFake.setChannels(5046, 1000);
+        float lux = mSensor.GetLuxData();
+        assertTrue("lux " + lux, lux > 1000.0f && lux < Float.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void getLuxData_channel1SaturatedAt101ms_returnsInfinity() throws Exception {
+        mSensor.SetGainAndIntegtime(TSL2561.TIMING_GAIN_1, TSL2561.TIMING_TIME_101);
+        mFake.setChannels(30000, 37177);
+        assertEquals(Float.POSITIVE_INFINITY, mSensor.GetLuxData(), 0.0f);
+    }
+
+    @Test
+    public void getLuxData_saturatedAt402ms_integerEngineReturnsInfinity() throws Exception {
+        mSensor.SetLuxEngine(TSL2561.LUX_ENGINE_INTEGER, TSL2561.PACKAGE_T);
+        mFake.setChannels(0xFFFF, 2000);
+        assertEquals(Float.POSITIVE_INFINITY, mSensor.GetLuxData(), 0.0f);
+    }
+}